@@ -1,13 +1,10 @@
 package com.piggybox.omnilab.aem;
 
-import com.google.common.net.InternetDomainName;
 import org.apache.commons.logging.Log;
-import org.apache.pig.backend.executionengine.ExecException;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * The Activity-Entity Model of mobile traffic.
@@ -32,20 +29,38 @@ class AEM{
     public static final int TYPE_RLYD = 2; // relayed
     public static final int TYPE_SRAL = 3; // serial
     // AEM configurations
-    private static final double CONJ_ST_DIFF = 0.5; //# sec, |ts1-ts2| < 0.5
+    static final double CONJ_ST_DIFF = 0.5; //# sec, |ts1-ts2| < 0.5
     private static final double CONF_ET_PCRT = 0.1; //# 10%, |te1-te2|/min(t1,t2) < 0.1
     private static final double RLYD_TDIFF1 = 0;	//# ts2-te1 >= 0
     private static final double RLYD_TDIFF2 = 0.5;	//# sec, ts2-te1 < 0.1
     private static final double SRAL_TDIFF1 = 0;	//# sec, ts2-te1 > 0
-    private static final double SRAL_TDIFF2 = 8;	//# sec, ts2-te1 <= 10
+    static final double SRAL_TDIFF2 = 8;	//# sec, ts2-te1 <= 10
     private static final double PRLL_OL = 0;		//# sec, overlap
-    private static final double PAGE_FAT = 5;		//# Number of embedded entities of fat page
-    private static final double PAGE_SLIM = 2;		//# Number of embedded entities of slim page
+    static final double PAGE_FAT = 5;		//# Number of embedded entities of fat page
+    static final double PAGE_SLIM = 2;		//# Number of embedded entities of slim page
     private static final double READING_TIME_DEFAULT = 2;	//# sec, user reading time
-    private static double READING_TIME;
-
-    private static List<Activity> activities = new LinkedList<Activity>();
-    private static Entity lastEntity = null;
+    // Thresholds of this model, the defaults above unless set.
+    private double conjStDiff = CONJ_ST_DIFF;
+    private double sralTdiff2 = SRAL_TDIFF2;
+    private double pageFat = PAGE_FAT;
+    private double pageSlim = PAGE_SLIM;
+    // Model state is kept per instance, so that concurrent models never share anything mutable.
+    private double readingTime;
+    private List<Activity> activities = new ArrayList<Activity>();
+    private Entity lastEntity = null;
+    // URLs of the model interned to dense int IDs.
+    private UrlDictionary urls;
+    // Bounded cache of top private domains by host.
+    private DomainCache domains;
+    // Model-wide URL index, by URL ID, pointing to the entity in the latest activity holding that URL.
+    // Entities know their owning activity, so a lookup gives both in constant time.
+    private Entity[] urlIndex = new Entity[64];
+    private long activitySeq = 0;
+    // A lower bound of the last end times of open activities, to skip needless eviction scans.
+    private double minLastEnd = Double.POSITIVE_INFINITY;
+    // Naming of activities, and the user key passed to it.
+    private ActivityIdGenerator idGenerator = new ActivityIds.UuidIds();
+    private String userKey = null;
     private Log logger = null;
 
     public AEM(){
@@ -53,90 +68,224 @@ class AEM{
     }
 
     public AEM(double readingTime, Log logger){
-        AEM.READING_TIME = readingTime;
+        this(readingTime, new UrlDictionary(), new DomainCache(), logger);
+    }
+
+    /**
+     * Make a model sharing URLs and domains with other models of the same user, e.g. to run several
+     * configurations at once. Models sharing a dictionary must be driven by the same thread.
+     * @param readingTime
+     * @param urls
+     * @param domains
+     * @param logger
+     */
+    public AEM(double readingTime, UrlDictionary urls, DomainCache domains, Log logger){
+        this.readingTime = readingTime;
+        this.urls = urls;
+        this.domains = domains;
         this.logger = logger;
     }
 
+    /**
+     * Set the thresholds of this model.
+     * @param conjStDiff The start time difference of conjunction entities, in seconds.
+     * @param sralTdiff2 The maximum gap of serial entities, in seconds.
+     * @param pageFat The number of embedded entities of a fat page.
+     * @param pageSlim The number of embedded entities of a slim page.
+     */
+    public void setThresholds(double conjStDiff, double sralTdiff2, double pageFat, double pageSlim){
+        this.conjStDiff = conjStDiff;
+        this.sralTdiff2 = sralTdiff2;
+        this.pageFat = pageFat;
+        this.pageSlim = pageSlim;
+    }
+
     public int size(){
-        return AEM.activities.size();
+        return this.activities.size();
+    }
+
+    /**
+     * Get the last entity added to this model.
+     * @return
+     */
+    public Entity getLastEntity(){
+        return this.lastEntity;
+    }
+
+    /**
+     * Forget the last entity and release its URL, so that an emptied model sharing
+     * its URL dictionary with others can be dropped without leaking the URL.
+     */
+    public void releaseLastEntity(){
+        if ( lastEntity != null )
+            urls.release(lastEntity.urlId);
+        lastEntity = null;
+    }
+
+    /**
+     * Get the URL string of an interned URL ID of this model.
+     * @param urlId
+     * @return
+     */
+    public String getUrl(int urlId){
+        return urls.get(urlId);
+    }
+
+    /**
+     * Check if given entity holds its URL in the model-wide index.
+     * @param entity
+     * @return
+     */
+    public boolean isIndexed(Entity entity){
+        return entity.urlId != UrlDictionary.NONE && getIndexedEntity(entity.urlId) == entity;
+    }
+
+    /**
+     * Restore the state of a checkpointed model into this empty model.
+     * @param open Open activities at appended order, with their sequences set and entities created by this model.
+     * @param indexed The entities holding their URLs in the model-wide index.
+     * @param last The last entity, either in an open activity or standalone, or null.
+     * @param nextSeq The next activity sequence.
+     */
+    public void restore(List<Activity> open, List<Entity> indexed, Entity last, long nextSeq){
+        if ( size() > 0 || lastEntity != null )
+            throw new IllegalStateException("Can not restore a checkpoint into a model in use.");
+        for ( Activity act : open ){
+            this.activities.add(act);
+            minLastEnd = Math.min(minLastEnd, act.getLastEnd());
+        }
+        if ( urlIndex.length < urls.capacity() )
+            urlIndex = Arrays.copyOf(urlIndex, urls.capacity());
+        for ( Entity e : indexed )
+            urlIndex[e.urlId] = e;
+        if ( last != null ){
+            if ( last.activity != null )
+                urls.retain(last.urlId);
+            else
+                urls.release(last.refId); // a standalone last entity only holds its URL.
+            lastEntity = last;
+        }
+        activitySeq = nextSeq;
+    }
+
+    /**
+     * Get the number of activities ever registered in this model, i.e. the next activity sequence.
+     * @return
+     */
+    public long getActivitySeq(){
+        return this.activitySeq;
+    }
+
+    /**
+     * Set the ID strategy of activities; null to leave activities unnamed.
+     * @param idGenerator
+     */
+    public void setIdGenerator(ActivityIdGenerator idGenerator){
+        this.idGenerator = idGenerator;
+    }
+
+    public void setUserKey(String userKey){
+        this.userKey = userKey;
+    }
+
+    /**
+     * Get the ID of an activity of this model, naming it on first call.
+     * Activities are named lazily, so that split-off and merged activities cost nothing.
+     * @param act
+     * @return
+     */
+    public Object getActivityID(Activity act){
+        if ( act.getID() == null && idGenerator != null ){
+            Entity root = act.getRootEntity();
+            act.setID(root == null ?
+                    idGenerator.nextId(userKey, act.getSeq(), null, null, 0) :
+                    idGenerator.nextId(userKey, act.getSeq(), root.getID(), urls.get(root.urlId), root.start));
+        }
+        return act.getID();
+    }
+
+    /**
+     * Create an entity of this model, interning its URLs in the model dictionary.
+     * The entity must be added to the model afterwards, which then takes care of releasing the URLs.
+     */
+    public Entity createEntity(double start, Double end, String url, String referrer, String type, String id, Object payload){
+        return new Entity(start, end, urls.intern(url), urls.intern(referrer), Entity.typeCode(type), id, payload);
+    }
+
+    /**
+     * Create an entity of this model as a copy of an entity of another model sharing the dictionary,
+     * without interning its URLs again.
+     * @param other
+     * @return
+     */
+    public Entity createEntity(Entity other){
+        urls.retain(other.urlId);
+        urls.retain(other.refId);
+        return new Entity(other.start, other.end, other.urlId, other.refId, other.type, other.getID(), other.getPayload());
     }
 
     /**
      * Add a given entity to AEM model correctly.
      * @param newEntity
-     * @throws org.apache.pig.backend.executionengine.ExecException
-     * @throws Exception
+     * @return True if a gap of unclassified type is met, so that all activities but the last are closed.
      */
-    public boolean addEntityToModel(Entity newEntity) throws ExecException {
+    public boolean addEntityToModel(Entity newEntity) {
         boolean createNew = false;
         boolean linked2activity = false;
         boolean dumpModelToBag = false; // indicate if the intermediate data are available to dump.
 
         if ( lastEntity == null ) createNew = true;
         else{
-            newEntity.aemLastType = classify(lastEntity, newEntity);
+            newEntity.aemLastType = (byte) classify(lastEntity, newEntity);
             if (newEntity.aemLastType == AEM.TYPE_UNCL){ // 10s is involved to separate different activities forcedly.
                 createNew = true;
                 dumpModelToBag = true;
             }else{
-                if ( newEntity.referrer != null ){ // with referrer
-                    Activity act = null;
+                if ( newEntity.refId != UrlDictionary.NONE ){ // with referrer
                     Entity removedEntity = null;
-                    for ( int i = activities.size()-1; i >= 0; i--){ // reversed order
-                        act = activities.get(i);
-                        Entity refEntity = act.findReferrerEntity(newEntity);
-                        if ( refEntity != null ){ // referrer found
-                            newEntity.aemLastType = classify(lastEntity, newEntity);
-                            newEntity.aemPredType = classify(refEntity, newEntity);
-                            act.addEntity(newEntity, refEntity);
-                            linked2activity = true;
-                            // Check if cut the activity
-                            // TODO: for requests generated by redirection, the original URL should also be included
-                            // in current activity.
-                            int pch = refEntity.getChildNum(); // child number
-                            boolean isPageBase = refEntity.isWebPageBase(); // if it is a web page base
-                            boolean isRefRoot = (act.hasRoot(refEntity) || refEntity.hasFakeReferrer);
-                            if (!isRefRoot && isPageBase && pch > PAGE_FAT ){
-                                removedEntity = refEntity;
-                            }
-                            if (!isRefRoot && newEntity.aemLastType==TYPE_SRAL && isPageBase && pch>PAGE_SLIM){ // removed bug
-                                removedEntity = refEntity;
-                            }
-                            if (!isRefRoot && newEntity.aemPredType==TYPE_UNCL && isPageBase && pch>PAGE_SLIM){
-                                removedEntity = refEntity;
-                            }
-                            break;
+                    Entity refEntity = getIndexedEntity(newEntity.refId);
+                    if ( refEntity != null ){ // referrer found
+                        Activity act = refEntity.activity;
+                        newEntity.aemLastType = (byte) classify(lastEntity, newEntity);
+                        newEntity.aemPredType = (byte) classify(refEntity, newEntity);
+                        act.addEntity(newEntity, refEntity);
+                        indexEntity(newEntity);
+                        linked2activity = true;
+                        // Check if cut the activity
+                        // TODO: for requests generated by redirection, the original URL should also be included
+                        // in current activity.
+                        int pch = refEntity.getChildNum(); // child number
+                        boolean isPageBase = refEntity.isWebPageBase(); // if it is a web page base
+                        boolean isRefRoot = (act.hasRoot(refEntity) || refEntity.hasFakeReferrer);
+                        if (!isRefRoot && isPageBase && pch > pageFat ){
+                            removedEntity = refEntity;
+                        }
+                        if (!isRefRoot && newEntity.aemLastType==TYPE_SRAL && isPageBase && pch>pageSlim){ // removed bug
+                            removedEntity = refEntity;
+                        }
+                        if (!isRefRoot && newEntity.aemPredType==TYPE_UNCL && isPageBase && pch>pageSlim){
+                            removedEntity = refEntity;
                         }
                     }
                     // Remove cutEntities as new activities
                     if ( removedEntity != null ) {
-                        for ( int j = activities.size()-1; j >= 0; j--){ // reversed order
-                            Activity a = activities.get(j);
-                            if ( a.contains(removedEntity)){
-                                a.removeEntity(removedEntity);
-                                Activity newA = new Activity(removedEntity);
-                                activities.add(newA);
-                                logger.warn("New activity. Model size: " + size());
-                                break;
-                            }
-                        }
+                        removedEntity.activity.removeEntity(removedEntity);
+                        addActivity(new Activity(removedEntity));
+                        if ( logger != null )
+                            logger.warn("New activity. Model size: " + size());
                     }
                 } else { //without referrer
-                    String sdm1 = getTopPrivateDomain(lastEntity.url);
-                    String sdm2 = getTopPrivateDomain(newEntity.url);
-                    if ( newEntity.aemLastType != AEM.TYPE_SRAL || (Math.abs(lastEntity.overlap(newEntity)) < AEM.READING_TIME &&
-                            sdm1 != null && sdm2!=null && sdm1.equals(sdm2))) {
+                    if ( newEntity.aemLastType != AEM.TYPE_SRAL || (Math.abs(lastEntity.overlap(newEntity)) < this.readingTime &&
+                            isSameDomain(lastEntity, newEntity))) {
                         // create a fake link to the preceding
-                        for ( int i = activities.size()-1; i >= 0; i--){ // reversed order
-                            Activity act = activities.get(i);
-                            if ( act.contains(lastEntity)){
-                                // add e to this activity
-                                newEntity.aemPredType = newEntity.aemLastType;
-                                newEntity.hasFakeReferrer = true;
-                                linked2activity = true;
-                                act.addEntity(newEntity, lastEntity);
-                                break;
-                            }
+                        Activity act = lastEntity.activity;
+                        if ( act != null ){
+                            // add e to this activity
+                            newEntity.aemPredType = newEntity.aemLastType;
+                            newEntity.hasFakeReferrer = true;
+                            linked2activity = true;
+                            act.addEntity(newEntity, lastEntity);
+                            indexEntity(newEntity);
                         }
                     } else {
                         createNew = true;
@@ -146,16 +295,20 @@ class AEM{
         }
         if ( createNew || !linked2activity ){
             Activity newActivity = new Activity();
-            String ref = newEntity.referrer;
-            if ( ref != null ){
-                Entity dummyEntity = new Entity(newEntity.start, null, newEntity.referrer, null, null, null, null);
+            if ( newEntity.refId != UrlDictionary.NONE ){
+                urls.retain(newEntity.refId); // held by the dummy entity as its URL
+                Entity dummyEntity = new Entity(newEntity.start, null, newEntity.refId, UrlDictionary.NONE, Entity.CT_OTHER, null, null);
                 dummyEntity.isDummy = true; // make sure isDummy set
                 newActivity.addEntity(dummyEntity, null);
                 newActivity.addEntity(newEntity, dummyEntity);
             } else
                 newActivity.addEntity(newEntity, null);
-            AEM.activities.add(newActivity);
+            addActivity(newActivity);
         }
+        // The last entity may outlive its activity, so it holds its own reference to the URL.
+        urls.retain(newEntity.urlId);
+        if ( lastEntity != null )
+            urls.release(lastEntity.urlId);
         lastEntity = newEntity;
         return dumpModelToBag;
     }
@@ -165,14 +318,120 @@ class AEM{
      * @return
      */
     public List<Activity> getActivities(int startIndex, int endIndex){
-        return AEM.activities.subList(startIndex, endIndex);
+        return this.activities.subList(startIndex, endIndex);
     }
 
     /**
      * Remove activities from startIndex to endIndex at appended order.
      */
     public void removeActivities(int startIndex, int endIndex){
-        AEM.activities.subList(startIndex, endIndex).clear();
+        List<Activity> removed = this.activities.subList(startIndex, endIndex);
+        List<Integer> orphans = unindexActivities(removed);
+        removed.clear();
+        reindexOrphans(orphans);
+    }
+
+    /**
+     * Close and remove the activities whose entities all end before given watermark.
+     * The model order is kept for both removed and remaining activities.
+     * @param watermark
+     * @return Closed activities at appended order.
+     */
+    public List<Activity> closeActivitiesBefore(double watermark){
+        List<Activity> closed = new ArrayList<Activity>();
+        if ( watermark <= minLastEnd )
+            return closed;
+        List<Activity> open = new ArrayList<Activity>(this.activities.size());
+        minLastEnd = Double.POSITIVE_INFINITY;
+        for ( Activity act : this.activities ){
+            if ( act.getLastEnd() < watermark ){
+                closed.add(act);
+            } else {
+                open.add(act);
+                minLastEnd = Math.min(minLastEnd, act.getLastEnd());
+            }
+        }
+        if ( ! closed.isEmpty() ){
+            List<Integer> orphans = unindexActivities(closed);
+            this.activities = open;
+            reindexOrphans(orphans);
+        }
+        return closed;
+    }
+
+    /**
+     * Detach the entities of given activities from the model and release their URLs.
+     * @param removed
+     * @return URL IDs no longer indexed.
+     */
+    private List<Integer> unindexActivities(List<Activity> removed){
+        List<Integer> orphans = new ArrayList<Integer>();
+        for ( Activity act : removed ){
+            getActivityID(act); // name it while its URLs are still interned
+            for ( Entity e : act.getAllEntities(true) ){
+                e.activity = null;
+                if ( getIndexedEntity(e.urlId) == e ){
+                    urlIndex[e.urlId] = null;
+                    orphans.add(e.urlId);
+                }
+                urls.release(e.urlId);
+                urls.release(e.refId);
+            }
+        }
+        return orphans;
+    }
+
+    /**
+     * Hand orphaned URLs over to the latest remaining activity still holding them.
+     * @param orphans
+     */
+    private void reindexOrphans(List<Integer> orphans){
+        for ( int urlId : orphans ){
+            for ( int i = activities.size()-1; i >= 0; i--){ // reversed order
+                Entity e = activities.get(i).getEntityByUrl(urlId);
+                if ( e != null ){
+                    urlIndex[urlId] = e;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Append a new activity to the model and index all its entities.
+     * @param act
+     */
+    private void addActivity(Activity act){
+        act.setSeq(activitySeq++);
+        this.activities.add(act);
+        for ( Entity e : act.getAllEntities(true) )
+            indexEntity(e);
+        minLastEnd = Math.min(minLastEnd, act.getLastEnd());
+    }
+
+    /**
+     * Index an entity by its URL unless an entity of a later activity already holds the URL.
+     * @param entity
+     */
+    private void indexEntity(Entity entity){
+        if ( entity.urlId == UrlDictionary.NONE || entity.activity == null )
+            return;
+        if ( urlIndex.length < urls.capacity() )
+            urlIndex = Arrays.copyOf(urlIndex, urls.capacity());
+        Entity old = urlIndex[entity.urlId];
+        if ( old == null || old.activity == null || old.activity.getSeq() <= entity.activity.getSeq() )
+            urlIndex[entity.urlId] = entity.activity.getEntityByUrl(entity.urlId);
+    }
+
+    /**
+     * Get the indexed entity of given URL ID.
+     * @param urlId
+     * @return The entity, or null if the URL is not held by any open activity.
+     */
+    private Entity getIndexedEntity(int urlId){
+        if ( urlId == UrlDictionary.NONE || urlId >= urlIndex.length )
+            return null;
+        return urlIndex[urlId];
     }
 
     /**
@@ -194,6 +453,19 @@ class AEM{
         return type;
     }
 
+    /**
+     * Check if a new entity is separated from the last one by a gap that no relationship spans,
+     * i.e. it is classified as TYPE_UNCL and closes all open activities of the model.
+     * Domains never matter here: entities passing the timing test of conjunction are
+     * parallel or serial otherwise, so plain entities without URLs can be checked.
+     * @param lastEntity
+     * @param newEntity
+     * @return
+     */
+    public boolean isGap(Entity lastEntity, Entity newEntity){
+        return !isParallel(lastEntity, newEntity) && !isRelayed(lastEntity, newEntity) && !isSerial(lastEntity, newEntity);
+    }
+
     /**
      * Check if two entities are classified as relayed relationship.
      * @param e1
@@ -215,7 +487,7 @@ class AEM{
      */
     private boolean isSerial(Entity e1, Entity e2){
         double ol = e1.overlap(e2);
-        if ( ol <= 0 && Math.abs(ol) >= AEM.SRAL_TDIFF1 && Math.abs(ol) <= AEM.SRAL_TDIFF2)
+        if ( ol <= 0 && Math.abs(ol) >= AEM.SRAL_TDIFF1 && Math.abs(ol) <= sralTdiff2)
             return true;
         return false;
     }
@@ -231,32 +503,40 @@ class AEM{
         double td = e1.tailDiff(e2);
         double d1 = e1.duration();
         double d2 = e2.duration();
-        // Get top private domains
-        String sdm1 = getTopPrivateDomain(e1.url);
-        String sdm2 = getTopPrivateDomain(e2.url);
-        if ( hd <= AEM.CONJ_ST_DIFF && td/Math.min(d1, d2) < AEM.CONF_ET_PCRT &&
-                sdm1 != null && sdm2 != null && sdm1.equals(sdm2))
+        // Cheap timing tests go before domain resolution.
+        if ( hd <= conjStDiff && td/Math.min(d1, d2) < AEM.CONF_ET_PCRT &&
+                isSameDomain(e1, e2))
             return true;
         return false;
     }
 
-    private String getTopPrivateDomain(String url){
-        String tpd = getHost(url);
-        try {
-            tpd = InternetDomainName.from(tpd).topPrivateDomain().toString();
-        } catch (Exception e) {}
-        return tpd; // maybe null
+    /**
+     * Check if two entities share the same top private domain.
+     * @param e1
+     * @param e2
+     * @return
+     */
+    private boolean isSameDomain(Entity e1, Entity e2){
+        String sdm1 = getDomain(e1);
+        String sdm2 = getDomain(e2);
+        return sdm1 != null && sdm2 != null && sdm1.equals(sdm2);
     }
 
-    private String getHost(String url){
-        if (url != null ){
-            Pattern pattern = Pattern.compile("^(?:\\w+:?//)?([^:\\/\\?&]+)", Pattern.CASE_INSENSITIVE);
-            Matcher matcher = pattern.matcher(url);
-            if ( matcher.find() ){
-                return matcher.group(1);
+    /**
+     * Get the top private domain of an entity, resolved once per entity.
+     * @param e
+     * @return The domain; maybe null.
+     */
+    private String getDomain(Entity e){
+        if ( ! e.domainResolved ){
+            e.domain = urls.getDomain(e.urlId);
+            if ( e.domain == null ){
+                e.domain = domains.getTopPrivateDomain(urls.get(e.urlId));
+                urls.setDomain(e.urlId, e.domain);
             }
+            e.domainResolved = true;
         }
-        return url;
+        return e.domain;
     }
 
     /**
@@ -0,0 +1,206 @@
+package com.piggybox.omnilab.aem;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Run the AID algorithm of Activity-Entity Model over HTTP logs on local disk, without Hadoop.
+ * The input directory holds one file per user, named by the user key, with tab-separated lines
+ * (start, end, URL, referrer, content type, ID ...) in ascending order of start time; times are in
+ * seconds, and empty or \N fields are nulls. Each file is written to the output directory under the
+ * same name, every line being appended by its activity ID and lines being grouped by activity.
+ * Malformed lines, e.g. with a bad start time, are counted and skipped.
+ * Users are detected in parallel on a fork-join pool.
+ *
+ * Usage: AEMBatchRunner inputDir outputDir [readingTime=2] [threads=#cores] [idStrategy=uuid] [horizon=0]
+ *
+ * @author chenxm
+ */
+public class AEMBatchRunner {
+    private static final String NULL_FIELD = "\\N";
+
+    private double readingTime;
+    private double horizon;
+    private String idStrategy;
+    private File outputDir;
+
+    public AEMBatchRunner(double readingTime, double horizon, String idStrategy, File outputDir){
+        this.readingTime = readingTime;
+        this.horizon = horizon;
+        this.idStrategy = idStrategy;
+        this.outputDir = outputDir;
+        ActivityIds.forName(idStrategy); // fail early on unknown strategies
+    }
+
+    /**
+     * Detect activities of all user files on given pool.
+     * @param files
+     * @param pool
+     * @return The numbers of entities, activities and malformed lines.
+     */
+    public long[] run(File[] files, ForkJoinPool pool){
+        return pool.invoke(new UserFilesTask(files, 0, files.length));
+    }
+
+    /**
+     * Detect activities of a single user file. Malformed lines are counted and skipped.
+     * @param input
+     * @return The numbers of entities, activities and malformed lines.
+     * @throws IOException
+     */
+    public long[] runUser(File input) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(input), "UTF-8"));
+        try {
+            final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(new File(outputDir, input.getName())), "UTF-8"));
+            try {
+                return detect(input, reader, writer);
+            } finally {
+                writer.close();
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private long[] detect(File input, BufferedReader reader, final BufferedWriter writer) throws IOException {
+        final IOException[] writeError = new IOException[1];
+        AEMEngine engine = new AEMEngine(readingTime, new AEMEngine.ActivityListener(){
+            @Override
+            public void activityClosed(Object activityId, long seq, List<Object> payloads) {
+                try {
+                    for ( Object line : payloads ){
+                        writer.write((String) line);
+                        writer.write('\t');
+                        writer.write(String.valueOf(activityId));
+                        writer.newLine();
+                    }
+                } catch (IOException e) {
+                    writeError[0] = e;
+                }
+            }
+        });
+        engine.setHorizon(horizon);
+        engine.setIdGenerator(ActivityIds.forName(idStrategy));
+        engine.setUserKey(userKey(input));
+        long malformed = 0;
+        String line;
+        while ( (line = reader.readLine()) != null && writeError[0] == null ){
+            if ( line.length() == 0 )
+                continue;
+            String[] fields = line.split("\t", -1);
+            double start;
+            Double end;
+            try {
+                if ( fields.length < 6 )
+                    throw new NumberFormatException();
+                start = Double.parseDouble(fields[0]);
+                end = field(fields[1]) == null ? null : Double.valueOf(fields[1]);
+            } catch (NumberFormatException e) {
+                malformed++;
+                continue;
+            }
+            engine.addEntity(start, end, field(fields[2]), field(fields[3]), field(fields[4]), field(fields[5]), line);
+        }
+        engine.flush();
+        if ( writeError[0] != null )
+            throw writeError[0];
+        return new long[]{engine.getEntityCount(), engine.getActivityCount(), malformed};
+    }
+
+    private static String field(String value){
+        return value.length() == 0 || NULL_FIELD.equals(value) ? null : value;
+    }
+
+    private static String userKey(File input){
+        String name = input.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    /**
+     * Split user files in halves until a single file is left.
+     */
+    private class UserFilesTask extends RecursiveTask<long[]> {
+        private static final long serialVersionUID = 1L;
+        private File[] files;
+        private int from;
+        private int to;
+
+        UserFilesTask(File[] files, int from, int to){
+            this.files = files;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected long[] compute() {
+            if ( to - from == 0 )
+                return new long[]{0, 0, 0};
+            if ( to - from == 1 ){
+                try {
+                    return runUser(files[from]);
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to detect activities of " + files[from], e);
+                }
+            }
+            int mid = (from + to) >>> 1;
+            UserFilesTask left = new UserFilesTask(files, from, mid);
+            left.fork();
+            long[] right = new UserFilesTask(files, mid, to).compute();
+            long[] result = left.join();
+            result[0] += right[0];
+            result[1] += right[1];
+            result[2] += right[2];
+            return result;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if ( args.length < 2 ){
+            System.err.println("Usage: AEMBatchRunner inputDir outputDir [readingTime=2] [threads=#cores] [idStrategy=uuid] [horizon=0]");
+            System.exit(1);
+        }
+        File inputDir = new File(args[0]);
+        File outputDir = new File(args[1]);
+        double readingTime = args.length > 2 ? Double.parseDouble(args[2]) : 2;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        String idStrategy = args.length > 4 ? args[4] : ActivityIds.UUID_IDS;
+        double horizon = args.length > 5 ? Double.parseDouble(args[5]) : 0;
+        File[] entries = inputDir.listFiles();
+        if ( entries == null )
+            throw new IOException("Not a directory: " + inputDir);
+        List<File> userFiles = new ArrayList<File>();
+        for ( File f : entries )
+            if ( f.isFile() && ! f.isHidden() )
+                userFiles.add(f);
+        if ( ! outputDir.isDirectory() && ! outputDir.mkdirs() )
+            throw new IOException("Can not create directory: " + outputDir);
+        // Largest users first, so that they do not end up last on a single worker.
+        Collections.sort(userFiles, new Comparator<File>(){
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f2.length(), f1.length());
+            }
+        });
+        File[] files = userFiles.toArray(new File[userFiles.size()]);
+        long startTime = System.currentTimeMillis();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        long[] counts = new AEMBatchRunner(readingTime, horizon, idStrategy, outputDir).run(files, pool);
+        pool.shutdown();
+        System.out.println(String.format("%d users, %d entities, %d activities, %d malformed lines in %.3f s",
+                files.length, counts[0], counts[1], counts[2], (System.currentTimeMillis() - startTime) / 1000.0));
+    }
+}
@@ -0,0 +1,175 @@
+package com.piggybox.omnilab.aem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pig.data.DataReaderWriter;
+
+import com.piggybox.utils.tree.TreeNode;
+
+/**
+ * A compact binary checkpoint of the open state of an AEM model: open activities with their trees,
+ * sequences and URL indexes, the last entity and the activity sequence counter.
+ * Entity payloads are Pig tuples, written in Pig's own binary format.
+ * Restoring a checkpoint into a fresh model gives back the exact state of the checkpointed one,
+ * except for input ordinals, which are not kept.
+ * @author chenxm
+ */
+class AEMCheckpoint {
+    private static final byte VERSION = 1;
+
+    /**
+     * Write the open state of a model.
+     * @param model
+     * @return
+     * @throws IOException
+     */
+    public static byte[] write(AEM model) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(VERSION);
+        out.writeLong(model.getActivitySeq());
+        List<Activity> open = model.getActivities(0, model.size());
+        Entity last = model.getLastEntity();
+        int lastActivity = -1;
+        int lastPosition = -1;
+        out.writeInt(open.size());
+        for ( int a = 0; a < open.size(); a++ ){
+            Activity act = open.get(a);
+            List<Entity> entities = act.getAllEntities(true); // in preorder, so parents go first.
+            Map<Entity, Integer> positions = new IdentityHashMap<Entity, Integer>();
+            out.writeLong(act.getSeq());
+            out.writeInt(entities.size());
+            for ( int i = 0; i < entities.size(); i++ ){
+                Entity e = entities.get(i);
+                positions.put(e, i);
+                TreeNode parent = e.getTreeNode().getParent();
+                out.writeInt(i == 0 ? -1 : positions.get((Entity) parent.getObject()));
+                writeEntity(out, model, e);
+                out.writeBoolean(act.getEntityByUrl(e.urlId) == e);
+                out.writeBoolean(model.isIndexed(e));
+                if ( e == last ){
+                    lastActivity = a;
+                    lastPosition = i;
+                }
+            }
+        }
+        out.writeInt(lastActivity);
+        out.writeInt(lastPosition);
+        out.writeBoolean(last != null && lastActivity < 0);
+        if ( last != null && lastActivity < 0 )
+            writeEntity(out, model, last);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Restore the open state of a checkpointed model into an empty model.
+     * @param model
+     * @param checkpoint
+     * @throws IOException
+     */
+    public static void read(AEM model, byte[] checkpoint) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(checkpoint));
+        byte version = in.readByte();
+        if ( version != VERSION )
+            throw new IOException("Unknown AEM checkpoint version: " + version);
+        long nextSeq = in.readLong();
+        int activityCount = in.readInt();
+        List<Activity> open = new ArrayList<Activity>(activityCount);
+        List<Entity[]> openEntities = new ArrayList<Entity[]>(activityCount);
+        List<Entity> indexed = new ArrayList<Entity>();
+        for ( int a = 0; a < activityCount; a++ ){
+            long seq = in.readLong();
+            Entity[] entities = new Entity[in.readInt()];
+            List<Entity> heldByActivity = new ArrayList<Entity>();
+            for ( int i = 0; i < entities.length; i++ ){
+                int parent = in.readInt();
+                entities[i] = readEntity(in, model);
+                if ( parent >= 0 )
+                    entities[parent].getTreeNode().add(entities[i].getTreeNode());
+                if ( in.readBoolean() )
+                    heldByActivity.add(entities[i]);
+                if ( in.readBoolean() )
+                    indexed.add(entities[i]);
+            }
+            Activity act = new Activity(entities[0]);
+            act.setSeq(seq);
+            for ( Entity e : heldByActivity )
+                act.indexEntity(e);
+            open.add(act);
+            openEntities.add(entities);
+        }
+        int lastActivity = in.readInt();
+        int lastPosition = in.readInt();
+        Entity last = null;
+        if ( lastActivity >= 0 )
+            last = openEntities.get(lastActivity)[lastPosition];
+        if ( in.readBoolean() )
+            last = readEntity(in, model);
+        model.restore(open, indexed, last, nextSeq);
+    }
+
+    private static void writeEntity(DataOutput out, AEM model, Entity e) throws IOException {
+        out.writeDouble(e.start);
+        out.writeDouble(e.end);
+        writeString(out, model.getUrl(e.urlId));
+        writeString(out, model.getUrl(e.refId));
+        out.writeByte(e.type);
+        writeString(out, e.getID());
+        out.writeBoolean(e.isDummy);
+        out.writeBoolean(e.hasFakeReferrer);
+        out.writeByte(e.aemLastType);
+        out.writeByte(e.aemPredType);
+        DataReaderWriter.writeDatum(out, e.getPayload());
+    }
+
+    private static Entity readEntity(DataInput in, AEM model) throws IOException {
+        double start = in.readDouble();
+        double end = in.readDouble();
+        String url = readString(in);
+        String referrer = readString(in);
+        byte type = in.readByte();
+        String id = readString(in);
+        boolean isDummy = in.readBoolean();
+        boolean hasFakeReferrer = in.readBoolean();
+        byte aemLastType = in.readByte();
+        byte aemPredType = in.readByte();
+        Object payload = DataReaderWriter.readDatum(in);
+        Entity e = model.createEntity(start, end, url, referrer, null, id, payload);
+        e.type = type;
+        e.isDummy = isDummy;
+        e.hasFakeReferrer = hasFakeReferrer;
+        e.aemLastType = aemLastType;
+        e.aemPredType = aemPredType;
+        return e;
+    }
+
+    private static void writeString(DataOutput out, String s) throws IOException {
+        if ( s == null ){
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if ( length < 0 )
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -0,0 +1,176 @@
+package com.piggybox.omnilab.aem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+
+/**
+ * A plain Java API of the Activity-Entity Model, free of Pig.
+ * Entities of one user are fed in ascending order of start time, and closed activities are
+ * passed to a listener as soon as a silent gap, the watermark horizon or flush() closes them.
+ * An optional entity listener is told the activity of each entity as soon as it is attached.
+ * An engine holds the model of a single user and is not thread-safe; use one engine per user.
+ *
+ * <pre>
+ * AEMEngine engine = new AEMEngine(2, listener);
+ * engine.addEntity(start, end, url, referrer, contentType, id, record);
+ * ...
+ * engine.flush();
+ * </pre>
+ *
+ * @author chenxm
+ */
+public class AEMEngine {
+    /**
+     * The receiver of closed activities.
+     */
+    public interface ActivityListener {
+        /**
+         * Called once per closed activity, in the order activities are closed.
+         * @param activityId The ID given by the ID strategy of the engine.
+         * @param seq The registration order of the activity in the model.
+         * @param payloads The payloads of entities of the activity, in tree preorder from the root.
+         */
+        public void activityClosed(Object activityId, long seq, List<Object> payloads);
+    }
+
+    /**
+     * The receiver of entities as they are attached to activities.
+     */
+    public interface EntityListener {
+        /**
+         * Called once per entity, when addEntity() attaches it. The activity is final unless AEM later cuts
+         * the page of the entity off its referrer into an activity of its own, as reported when it is closed.
+         * @param activityId The ID of the activity the entity is attached to.
+         * @param payload The payload of the entity.
+         */
+        public void entityAttached(Object activityId, Object payload);
+    }
+
+    private AEM model;
+    private ActivityListener listener;
+    private EntityListener entityListener = null;
+    private double horizon = 0; // watermark horizon in seconds, disabled if not positive
+    private long entityCount = 0;
+    private long activityCount = 0;
+
+    /**
+     * @param readingTime The user reading time in seconds, e.g. 2.
+     * @param listener
+     */
+    public AEMEngine(double readingTime, ActivityListener listener){
+        this(readingTime, listener, null);
+    }
+
+    /**
+     * @param readingTime The user reading time in seconds, e.g. 2.
+     * @param listener
+     * @param logger A logger for model warnings, or null.
+     */
+    public AEMEngine(double readingTime, ActivityListener listener, Log logger){
+        this.model = new AEM(readingTime, logger);
+        this.listener = listener;
+    }
+
+    /**
+     * Set the watermark horizon in seconds to close idle activities; 0 to disable, by default.
+     * @param horizon
+     */
+    public void setHorizon(double horizon){
+        this.horizon = horizon;
+    }
+
+    /**
+     * Set the receiver of entities as they are attached; none by default.
+     * @param entityListener
+     */
+    public void setEntityListener(EntityListener entityListener){
+        this.entityListener = entityListener;
+    }
+
+    /**
+     * Set the ID strategy of activities, see ActivityIds. Random UUIDs by default.
+     * @param idGenerator
+     */
+    public void setIdGenerator(ActivityIdGenerator idGenerator){
+        model.setIdGenerator(idGenerator);
+    }
+
+    /**
+     * Set the user key passed to the ID strategy.
+     * @param userKey
+     */
+    public void setUserKey(String userKey){
+        model.setUserKey(userKey);
+    }
+
+    /**
+     * Feed an entity, i.e. an HTTP request, to the model.
+     * @param start The request start time in seconds.
+     * @param end The request end time in seconds, or null if unknown.
+     * @param url
+     * @param referrer The referrer URL, or null.
+     * @param contentType The response content type, e.g. "text/html", or null.
+     * @param id The entity ID, or null.
+     * @param payload The record to hand back with the closed activity.
+     */
+    public void addEntity(double start, Double end, String url, String referrer, String contentType, String id, Object payload){
+        Entity newEntity = model.createEntity(start, end, url, referrer, contentType, id, payload);
+        newEntity.ordinal = entityCount++;
+        if ( horizon > 0 )
+            emit(model.closeActivitiesBefore(newEntity.start - horizon));
+        if ( model.addEntityToModel(newEntity) && model.size() > 0 )
+            close(0, model.size() - 1); // leave the last activity to add new entities.
+        if ( entityListener != null )
+            entityListener.entityAttached(model.getActivityID(newEntity.activity), payload);
+    }
+
+    /**
+     * Close all open activities, e.g. at the end of input.
+     * The engine can be fed again afterwards, as after a long silent gap.
+     */
+    public void flush(){
+        close(0, model.size());
+    }
+
+    /**
+     * Get the number of open activities in the model.
+     * @return
+     */
+    public int openActivities(){
+        return model.size();
+    }
+
+    /**
+     * Get the number of entities fed so far.
+     * @return
+     */
+    public long getEntityCount(){
+        return entityCount;
+    }
+
+    /**
+     * Get the number of activities closed so far.
+     * @return
+     */
+    public long getActivityCount(){
+        return activityCount;
+    }
+
+    private void close(int startIndex, int endIndex){
+        emit(model.getActivities(startIndex, endIndex));
+        model.removeActivities(startIndex, endIndex);
+    }
+
+    private void emit(List<Activity> activities){
+        for ( Activity act : activities ){
+            List<Entity> entities = act.getAllEntities();
+            List<Object> payloads = new ArrayList<Object>(entities.size());
+            for ( Entity e : entities )
+                payloads.add(e.getPayload());
+            activityCount++;
+            listener.activityClosed(model.getActivityID(act), act.getSeq(), payloads);
+        }
+    }
+}
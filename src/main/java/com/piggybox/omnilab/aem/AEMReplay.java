@@ -0,0 +1,78 @@
+package com.piggybox.omnilab.aem;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+
+/**
+ * Replay a log file to AEMServer as its live feed, e.g. for testing.
+ * The file holds the lines of the feed, see AEMServer. Lines are sent as fast as possible, or at a given
+ * number of lines per second.
+ *
+ * Usage: AEMReplay file port [host=127.0.0.1] [rate=0]
+ *
+ * @author chenxm
+ */
+public class AEMReplay {
+
+    /**
+     * Send the lines of a reader to a writer.
+     * @param reader
+     * @param writer
+     * @param rate The number of lines per second; 0 for no limit.
+     * @return The number of lines sent.
+     * @throws IOException
+     */
+    public static long replay(BufferedReader reader, Writer writer, double rate) throws IOException {
+        long startTime = System.nanoTime();
+        long lines = 0;
+        String line;
+        while ( (line = reader.readLine()) != null ){
+            if ( rate > 0 ){
+                long due = startTime + (long) (lines / rate * 1e9);
+                long wait = due - System.nanoTime();
+                if ( wait > 0 ){
+                    writer.flush(); // do not hold lines while waiting
+                    try {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            writer.write(line);
+            writer.write('\n');
+            lines++;
+        }
+        writer.flush();
+        return lines;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if ( args.length < 2 ){
+            System.err.println("Usage: AEMReplay file port [host=127.0.0.1] [rate=0]");
+            System.exit(1);
+        }
+        int port = Integer.parseInt(args[1]);
+        String host = args.length > 2 ? args[2] : "127.0.0.1";
+        double rate = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(args[0]), "UTF-8"));
+        Socket socket = new Socket(host, port);
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            long startTime = System.currentTimeMillis();
+            long lines = replay(reader, writer, rate);
+            double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+            System.out.println(String.format("%d lines in %.3f s (%.1f/s)", lines, seconds, lines / Math.max(seconds, 0.001)));
+        } finally {
+            reader.close();
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package com.piggybox.omnilab.aem;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A long-running service of the Activity-Entity Model over a live feed of HTTP logs on a local TCP socket.
+ * Each line of the feed is a tab-separated record (user key, start, end, URL, referrer, content type, ID ...)
+ * with times in seconds and empty or \N fields as nulls; the records of a user are expected in ascending
+ * order of start time, as AEM links a record to those before it. A record starting before the latest record
+ * of its user is late; it is counted and dropped, as it would corrupt the links of the user.
+ * Feeders may connect one after another, the state of users being kept across connections.
+ *
+ * The service writes an assignment line for each record as soon as AEM attaches it to an activity, and
+ * a line of metrics for each closed activity, tab-separated:
+ * <pre>
+ * A  user  activity_id  entity_id
+ * M  user  activity_id  entities  start  end  completion_time
+ * </pre>
+ * When AEM cuts a page off its referrer into an activity of its own, the records already assigned are
+ * assigned again when that activity is closed; the last A line of a record holds. Output is flushed
+ * whenever the feed has no more data at hand, so that a record is assigned within milliseconds of its
+ * arrival. When the process is stopped, all open users are flushed to the output.
+ *
+ * Memory is bounded by the per-user models: a user is flushed and dropped when it has not sent a record
+ * for the idle time, measured by the latest start time seen in the feed, or when more users are open than
+ * given, the least recently seen going first. The throughput, open users and the backlog of unread bytes
+ * on the socket are logged periodically to stderr. See AEMReplay to replay a log file as the feed.
+ *
+ * Usage: AEMServer port [readingTime=2] [idStrategy=uuid] [horizon=0] [maxUsers=100000] [idleTime=1800]
+ *        [output=-] [statsInterval=10]
+ *
+ * @author chenxm
+ */
+public class AEMServer {
+    private static final String NULL_FIELD = "\\N";
+
+    private double readingTime;
+    private double horizon;
+    private String idStrategy;
+    private int maxUsers;
+    private double idleTime;
+    private Writer output;
+    private LinkedHashMap<String, UserState> users;
+    private double clock = Double.NEGATIVE_INFINITY; // the latest start time in the feed
+    private IOException writeError = null;
+    private volatile long recordCount = 0;
+    private volatile long malformedCount = 0;
+    private volatile long lateCount = 0;
+    private volatile long activityCount = 0;
+    private volatile int userCount = 0;
+    private volatile InputStream feed = null; // the socket being read, for the backlog
+    private boolean stopped = false;
+
+    /**
+     * @param readingTime The user reading time in seconds, e.g. 2.
+     * @param horizon The watermark horizon in seconds to close idle activities; 0 to disable.
+     * @param idStrategy See ActivityIds.
+     * @param maxUsers The maximum number of open users.
+     * @param idleTime The time in seconds after which a silent user is flushed.
+     * @param output
+     */
+    public AEMServer(double readingTime, double horizon, String idStrategy, int maxUsers, double idleTime, Writer output){
+        this.readingTime = readingTime;
+        this.horizon = horizon;
+        this.idStrategy = idStrategy;
+        this.maxUsers = Math.max(1, maxUsers);
+        this.idleTime = idleTime;
+        this.output = output;
+        this.users = new LinkedHashMap<String, UserState>(16, 0.75f, true); // in order of access
+        ActivityIds.forName(idStrategy); // fail early on unknown strategies
+    }
+
+    /**
+     * Process a record of the feed. Malformed and late records are counted and skipped,
+     * and records are ignored once the service is stopped.
+     * @param line
+     * @throws IOException If the output fails.
+     */
+    public synchronized void process(String line) throws IOException {
+        if ( stopped || line.length() == 0 )
+            return;
+        String[] fields = line.split("\t", -1);
+        double start;
+        Double end;
+        try {
+            if ( fields.length < 7 )
+                throw new NumberFormatException();
+            start = Double.parseDouble(fields[1]);
+            end = field(fields[2]) == null ? null : Double.valueOf(fields[2]);
+        } catch (NumberFormatException e) {
+            malformedCount++;
+            return;
+        }
+        String userKey = fields[0];
+        UserState state = users.get(userKey);
+        if ( state == null ){
+            state = new UserState(userKey);
+            users.put(userKey, state);
+            userCount = users.size();
+        }
+        if ( start < state.lastStart ){
+            lateCount++;
+            return;
+        }
+        state.lastStart = start;
+        clock = Math.max(clock, start);
+        recordCount++;
+        state.engine.addEntity(start, end, field(fields[3]), field(fields[4]), field(fields[5]), field(fields[6]),
+                new Record(field(fields[6]), start, end));
+        evictUsers();
+        checkOutput();
+    }
+
+    /**
+     * Flush all users, e.g. when the service is stopped.
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        for ( UserState state : users.values() )
+            state.engine.flush();
+        users.clear();
+        userCount = 0;
+        checkOutput();
+        output.flush();
+    }
+
+    /**
+     * Flush the users beyond the map size or silent for the idle time.
+     */
+    /**
+     * Flush all users and ignore records from now on, e.g. when the process exits.
+     * @throws IOException
+     */
+    public synchronized void stop() throws IOException {
+        stopped = true;
+        flush();
+    }
+
+    private void evictUsers(){
+        Iterator<Map.Entry<String, UserState>> itr = users.entrySet().iterator();
+        while ( itr.hasNext() ){
+            UserState state = itr.next().getValue();
+            if ( users.size() <= maxUsers && clock - state.lastStart <= idleTime )
+                break; // the rest are seen more recently
+            state.engine.flush();
+            itr.remove();
+        }
+        userCount = users.size();
+    }
+
+    private void checkOutput() throws IOException {
+        if ( writeError != null ){
+            IOException e = writeError;
+            writeError = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Serve feeders connecting to given port on the loopback interface, one at a time, until the process is killed.
+     * @param port
+     * @param statsInterval The interval in seconds to log statistics; 0 to disable.
+     * @throws IOException
+     */
+    public void serve(int port, int statsInterval) throws IOException {
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        if ( statsInterval > 0 )
+            startStats(statsInterval);
+        try {
+            while ( true ){
+                Socket socket = server.accept();
+                try {
+                    feed = socket.getInputStream();
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(feed, "UTF-8"));
+                    String line;
+                    while ( (line = reader.readLine()) != null ){
+                        process(line);
+                        if ( ! reader.ready() )
+                            flushOutput(); // nothing more at hand
+                    }
+                    flushOutput();
+                } finally {
+                    feed = null;
+                    socket.close();
+                }
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    private synchronized void flushOutput() throws IOException {
+        output.flush();
+    }
+
+    private void startStats(final int statsInterval){
+        Thread stats = new Thread("AEMServer-stats"){
+            @Override
+            public void run() {
+                long lastRecords = recordCount;
+                while ( true ){
+                    try {
+                        Thread.sleep(statsInterval * 1000L);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long records = recordCount;
+                    int backlog = 0;
+                    InputStream in = feed;
+                    try {
+                        if ( in != null )
+                            backlog = in.available();
+                    } catch (IOException e) {}
+                    System.err.println(String.format("%d records (%.1f/s), %d malformed, %d late, %d activities, %d users, %d bytes backlog",
+                            records, (records - lastRecords) / (double) statsInterval, malformedCount, lateCount,
+                            activityCount, userCount, backlog));
+                    lastRecords = records;
+                }
+            }
+        };
+        stats.setDaemon(true);
+        stats.start();
+    }
+
+    public long getRecordCount(){
+        return recordCount;
+    }
+
+    public long getMalformedCount(){
+        return malformedCount;
+    }
+
+    public long getLateCount(){
+        return lateCount;
+    }
+
+    public long getActivityCount(){
+        return activityCount;
+    }
+
+    public int getUserCount(){
+        return userCount;
+    }
+
+    private static String field(String value){
+        return value.length() == 0 || NULL_FIELD.equals(value) ? null : value;
+    }
+
+    /**
+     * What is kept of a record in the open activities.
+     */
+    private static class Record {
+        String id;
+        double start;
+        Double end;
+        Object activityId = null; // the activity the record is assigned to
+
+        Record(String id, double start, Double end){
+            this.id = id;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * The model of a user, writing its assignments and closed activities to the output.
+     */
+    private class UserState implements AEMEngine.ActivityListener, AEMEngine.EntityListener {
+        String userKey;
+        AEMEngine engine;
+        double lastStart = Double.NEGATIVE_INFINITY;
+
+        UserState(String userKey){
+            this.userKey = userKey;
+            this.engine = new AEMEngine(readingTime, this);
+            engine.setEntityListener(this);
+            engine.setHorizon(horizon);
+            engine.setIdGenerator(ActivityIds.forName(idStrategy));
+            engine.setUserKey(userKey);
+        }
+
+        @Override
+        public void entityAttached(Object activityId, Object payload) {
+            try {
+                assign((Record) payload, activityId);
+            } catch (IOException e) {
+                writeError = e;
+            }
+        }
+
+        @Override
+        public void activityClosed(Object activityId, long seq, List<Object> payloads) {
+            activityCount++;
+            double start = Double.POSITIVE_INFINITY;
+            double end = Double.NEGATIVE_INFINITY;
+            try {
+                for ( Object payload : payloads ){
+                    Record r = (Record) payload;
+                    start = Math.min(start, r.start);
+                    end = Math.max(end, r.end == null ? r.start : r.end);
+                    if ( ! activityId.equals(r.activityId) )
+                        assign(r, activityId); // cut off after it was assigned
+                }
+                output.write("M\t" + userKey + "\t" + activityId + "\t" + payloads.size() + "\t" + start + "\t" + end
+                        + "\t" + (end - start) + "\n");
+            } catch (IOException e) {
+                writeError = e;
+            }
+        }
+
+        private void assign(Record r, Object activityId) throws IOException {
+            r.activityId = activityId;
+            output.write("A\t" + userKey + "\t" + activityId + "\t" + (r.id == null ? NULL_FIELD : r.id) + "\n");
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if ( args.length < 1 ){
+            System.err.println("Usage: AEMServer port [readingTime=2] [idStrategy=uuid] [horizon=0] [maxUsers=100000] "
+                    + "[idleTime=1800] [output=-] [statsInterval=10]");
+            System.exit(1);
+        }
+        int port = Integer.parseInt(args[0]);
+        double readingTime = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+        String idStrategy = args.length > 2 ? args[2] : ActivityIds.UUID_IDS;
+        double horizon = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+        int maxUsers = args.length > 4 ? Integer.parseInt(args[4]) : 100000;
+        double idleTime = args.length > 5 ? Double.parseDouble(args[5]) : 1800;
+        String outputPath = args.length > 6 ? args[6] : "-";
+        int statsInterval = args.length > 7 ? Integer.parseInt(args[7]) : 10;
+        Writer output = new BufferedWriter(new OutputStreamWriter(
+                "-".equals(outputPath) ? System.out : new FileOutputStream(outputPath, true), "UTF-8"));
+        final AEMServer server = new AEMServer(readingTime, horizon, idStrategy, maxUsers, idleTime, output);
+        Runtime.getRuntime().addShutdownHook(new Thread("AEMServer-shutdown"){
+            @Override
+            public void run() {
+                try {
+                    server.stop();
+                } catch (IOException e) {
+                    System.err.println("Failed to flush open users: " + e);
+                }
+            }
+        });
+        server.serve(port, statsInterval);
+    }
+}
@@ -1,7 +1,6 @@
 package com.piggybox.omnilab.aem;
 
 import com.piggybox.utils.tree.TreeNode;
-import org.apache.pig.backend.executionengine.ExecException;
 
 import java.util.*;
 
@@ -12,14 +11,19 @@ import java.util.*;
 class Activity {
     // One activity, one tree.
     private TreeNode root = null; //
-    // A unique ID of this activity in the space of all activities.
-    private UUID ID;
+    // A unique ID of this activity in the space of all activities, named by the model when first output.
+    private Object ID = null;
+    // The order in which this activity is registered in AEM model.
+    private long seq = 0;
+    // The latest end time of entities ever added to this activity.
+    private double lastEnd = Double.NEGATIVE_INFINITY;
+    // URL index of entities in this activity, kept in step with the tree.
+    private IntEntityMap urlIndex = new IntEntityMap(); // URL ID: entity
 
     /**
      * Default constructor without actions.
      */
     public Activity() {
-        this.ID = UUID.randomUUID();
     }
 
     /**
@@ -29,6 +33,13 @@ class Activity {
     public Activity(Entity entity){
         this();
         this.root=entity.getTreeNode();
+        Iterator<TreeNode> itr = root.preorderIterator();
+        while( itr.hasNext() ){
+            Entity e = (Entity) itr.next().getObject();
+            e.activity = this;
+            indexEntity(e);
+            lastEnd = Math.max(lastEnd, e.end);
+        }
     }
 
     /**
@@ -43,23 +54,25 @@ class Activity {
      * Add an entity to this activity.
      * The entity is identified by AEM being owned by the activity.
      * @param entity
-     * @throws org.apache.pig.backend.executionengine.ExecException
-     * @throws Exception
+     * @throws IllegalArgumentException If the entity can not be linked to given referrer.
      */
-    public void addEntity(Entity entity, Entity referrer) throws ExecException {
+    public void addEntity(Entity entity, Entity referrer) {
         if ( root == null && referrer != null )
-            throw new ExecException("Parameter invalid: This activity is empty.");
+            throw new IllegalArgumentException("Parameter invalid: This activity is empty.");
         if( root != null && referrer == null )
-            throw new ExecException("An activity can not have two root entity.");
+            throw new IllegalArgumentException("An activity can not have two root entity.");
         if ( root == null && referrer == null )
             // add entity and treat it as the root
             this.root = entity.getTreeNode();
         if ( root != null && referrer != null ){
             // add entity and append it to its referred entity.
             if ( ! referrer.getTreeNode().isNodeAncestor(root))
-                throw new ExecException("Given referrer entity does not exists in this activity.");
+                throw new IllegalArgumentException("Given referrer entity does not exists in this activity.");
             referrer.getTreeNode().add(entity.getTreeNode());
         }
+        entity.activity = this;
+        indexEntity(entity);
+        lastEnd = Math.max(lastEnd, entity.end);
     }
 
     /**
@@ -79,16 +92,15 @@ class Activity {
      * At inner data structure, other entities linked to given entity are removed from this activity too.
      * @param entity
      * @return The removed entity (with linked other entities).
-     * @throws ExecException
-     * @throws Exception
      */
-    public void removeEntity(Entity entity) throws ExecException{
+    public void removeEntity(Entity entity) {
         if ( root !=  null && ! root.equals(entity.getTreeNode())){
             Iterator<TreeNode> treeWalker = root.preorderIterator();
             while ( treeWalker.hasNext() ){
                 TreeNode next = treeWalker.next();
                 if ( next.isNodeChild(entity.getTreeNode())){
                     next.remove(entity.getTreeNode());
+                    unindexSubtree(entity);
                     break;
                 }
             }
@@ -101,32 +113,70 @@ class Activity {
      * @return The referrer entity if it is in the activity; otherwise, null is returned.
      */
     public Entity findReferrerEntity(Entity entity){
-        // All entities contained in this activity.
-        Map<String,Entity> entities = new HashMap<String,Entity>(); // URL: entity
+        return getEntityByUrl(entity.refId);
+    }
+
+    /**
+     * Find the entity holding given URL in this activity.
+     * @param urlId Interned URL ID.
+     * @return The latest added entity with the URL, or null if not found.
+     */
+    public Entity getEntityByUrl(int urlId){
         if ( root == null )
             return null;
-        Iterator<TreeNode> itr = root.preorderIterator();
+        return urlIndex.get(urlId);
+    }
+
+    /**
+     * Register an entity in the URL index. The latest entity wins if URLs are duplicated.
+     * @param entity
+     */
+    void indexEntity(Entity entity){
+        urlIndex.put(entity.urlId, entity);
+    }
+
+    /**
+     * Drop the entities of a removed subtree from the URL index.
+     * If a removed URL is still held by another entity of this activity, that entity takes over the key.
+     * @param entity The root of the removed subtree.
+     */
+    private void unindexSubtree(Entity entity){
+        IntEntityMap orphans = new IntEntityMap();
+        Iterator<TreeNode> itr = entity.getTreeNode().preorderIterator();
         while( itr.hasNext() ){
-            TreeNode node = itr.next();
-            Entity e = (Entity) node.getObject();
-            if ( e.url != null )
-                entities.put(e.url, e);
+            Entity e = (Entity) itr.next().getObject();
+            e.activity = null;
+            if ( urlIndex.get(e.urlId) == e ){
+                urlIndex.remove(e.urlId);
+                orphans.put(e.urlId, e);
+            }
         }
-        // Find its referrer
-        String ref = entity.referrer;
-        if ( ref != null && entities.containsKey(ref)){
-            return entities.get(ref);
+        if ( orphans.size() == 0 )
+            return;
+        itr = root.preorderIterator();
+        while( itr.hasNext() ){
+            Entity e = (Entity) itr.next().getObject();
+            if ( orphans.get(e.urlId) != null )
+                urlIndex.put(e.urlId, e);
         }
-        return null;
     }
 
     public List<Entity> getAllEntities(){
+        return getAllEntities(false);
+    }
+
+    /**
+     * Get entities of this activity in tree preorder.
+     * @param withDummy If dummy referrer entities are included.
+     * @return
+     */
+    public List<Entity> getAllEntities(boolean withDummy){
         List<Entity> entities = new LinkedList<Entity>();
         if (root != null){
             Iterator<TreeNode> itr = root.preorderIterator();
             while( itr.hasNext() ){
                 Entity e = (Entity)itr.next().getObject();
-                if ( !e.isDummy )
+                if ( withDummy || !e.isDummy )
                     entities.add(e);
             }
         }
@@ -143,10 +193,48 @@ class Activity {
     }
 
     /**
-     * Get the activity ID in a string format.
-     * @return ID string.
+     * Get the latest end time of entities added to this activity.
+     * It is not lowered when entities are removed, so it is an upper bound.
+     * @return
+     */
+    public double getLastEnd(){
+        return this.lastEnd;
+    }
+
+    /**
+     * Get and set the registration order of this activity in AEM model.
+     */
+    public long getSeq(){
+        return this.seq;
+    }
+    public void setSeq(long seq){
+        this.seq = seq;
+    }
+
+    /**
+     * Get the activity ID.
+     * @return The ID given by the ID strategy of the model, or null if not named yet.
+     */
+    public Object getID(){
+        return this.ID;
+    }
+    public void setID(Object id){
+        this.ID = id;
+    }
+
+    /**
+     * Get the first non-dummy entity of this activity in tree preorder.
+     * @return The entity, or null if the activity has none.
      */
-    public String getID(){
-        return this.ID.toString();
+    public Entity getRootEntity(){
+        if (root != null){
+            Iterator<TreeNode> itr = root.preorderIterator();
+            while( itr.hasNext() ){
+                Entity e = (Entity)itr.next().getObject();
+                if ( !e.isDummy )
+                    return e;
+            }
+        }
+        return null;
     }
 }
\ No newline at end of file
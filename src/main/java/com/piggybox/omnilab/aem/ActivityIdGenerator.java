@@ -0,0 +1,27 @@
+package com.piggybox.omnilab.aem;
+
+/**
+ * A strategy to name activities of the AEM model.
+ * Implementations are created once per UDF instance and shared by the models of all its users, either
+ * by a built-in name of ActivityIds or by a class name with a public no-argument constructor.
+ * The user key and sequence are passed in, so an implementation should keep no per-user state.
+ * @author chenxm
+ */
+public interface ActivityIdGenerator {
+    /**
+     * Get the ID of an activity, called once when the activity is first output.
+     * @param userKey The user key of the model, or null if not given.
+     * @param seq The registration order of the activity in the model.
+     * @param rootId The ID of the first entity of the activity, or null if it has none.
+     * @param rootUrl The URL of the first entity of the activity.
+     * @param rootStart The start time of the first entity of the activity.
+     * @return A String, or a Long if isLong() is true.
+     */
+    public Object nextId(String userKey, long seq, String rootId, String rootUrl, double rootStart);
+
+    /**
+     * Check if IDs are rendered as longs rather than strings.
+     * @return
+     */
+    public boolean isLong();
+}
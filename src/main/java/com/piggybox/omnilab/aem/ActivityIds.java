@@ -0,0 +1,115 @@
+package com.piggybox.omnilab.aem;
+
+import java.util.UUID;
+
+/**
+ * Built-in activity ID strategies of AEM:
+ * "uuid" (default) gives random UUIDs;
+ * "seq" gives "userKey-seq", i.e. the registration order of the activity in the user's model,
+ * and fails without a user key, as the sequences of different users would collide;
+ * "hash" gives a 64-bit hash of the user key and the ID and start time of the first entity, in hex;
+ * "hashlong" gives the same hash as a long.
+ * All but "uuid" are reproducible when a task is retried on the same input.
+ * @author chenxm
+ */
+public class ActivityIds {
+    public static final String UUID_IDS = "uuid";
+    public static final String SEQ_IDS = "seq";
+    public static final String HASH_IDS = "hash";
+    public static final String HASHLONG_IDS = "hashlong";
+
+    /**
+     * Create the ID generator of given strategy name or class name.
+     * @param strategy
+     * @return
+     */
+    public static ActivityIdGenerator forName(String strategy){
+        String name = strategy.toLowerCase();
+        if ( UUID_IDS.equals(name) )
+            return new UuidIds();
+        if ( SEQ_IDS.equals(name) )
+            return new SeqIds();
+        if ( HASH_IDS.equals(name) )
+            return new HashIds(false);
+        if ( HASHLONG_IDS.equals(name) )
+            return new HashIds(true);
+        try {
+            return (ActivityIdGenerator) Class.forName(strategy).newInstance();
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Unknown activity ID strategy: " + strategy, e);
+        }
+    }
+
+    /**
+     * A 64-bit FNV-1a hash of the user key and root entity, finished by the MurmurHash3 mixer.
+     */
+    static long hash(String userKey, String rootId, String rootUrl, double rootStart){
+        long h = 0xcbf29ce484222325L;
+        h = hash(h, userKey);
+        h = hash(h, rootId != null ? rootId : rootUrl);
+        h ^= Double.doubleToLongBits(rootStart);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long hash(long h, String s){
+        if ( s != null ){
+            for ( int i = 0; i < s.length(); i++ ){
+                h ^= s.charAt(i);
+                h *= 0x100000001b3L;
+            }
+        }
+        // A separator, so that ("ab", "c") and ("a", "bc") differ.
+        h ^= 0xff;
+        h *= 0x100000001b3L;
+        return h;
+    }
+
+    static class UuidIds implements ActivityIdGenerator {
+        @Override
+        public Object nextId(String userKey, long seq, String rootId, String rootUrl, double rootStart){
+            return UUID.randomUUID().toString();
+        }
+        @Override
+        public boolean isLong(){
+            return false;
+        }
+    }
+
+    static class SeqIds implements ActivityIdGenerator {
+        @Override
+        public Object nextId(String userKey, long seq, String rootId, String rootUrl, double rootStart){
+            if ( userKey == null )
+                throw new IllegalStateException("The \"seq\" activity IDs need a user key, e.g. DetectActivity(records, user), "
+                        + "or they collide across users.");
+            return userKey + "-" + seq;
+        }
+        @Override
+        public boolean isLong(){
+            return false;
+        }
+    }
+
+    static class HashIds implements ActivityIdGenerator {
+        private boolean asLong;
+        HashIds(boolean asLong){
+            this.asLong = asLong;
+        }
+        @Override
+        public Object nextId(String userKey, long seq, String rootId, String rootUrl, double rootStart){
+            long h = hash(userKey, rootId, rootUrl, rootStart);
+            if ( asLong )
+                return Long.valueOf(h);
+            String hex = Long.toHexString(h);
+            return "0000000000000000".substring(hex.length()) + hex;
+        }
+        @Override
+        public boolean isLong(){
+            return asLong;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.piggybox.omnilab.aem;
+
+import java.io.IOException;
+
+import org.apache.pig.EvalFunc;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+
+/**
+ * Run the AID algorithm of Activity-Entity Model incrementally over daily partitions of logs.
+ * Input: a bag of tuples (HttpRequestStartTime, HttpRequestEndTime, URL, Referrer, ContentType, ID ..)
+ * of a user in ascending order of start time, the user's checkpoint of the previous run, and an optional
+ * user key as DetectActivity. The checkpoint is a bytearray, null, or a bag of tuples with the checkpoint
+ * as the last field, e.g. the checkpoints of a COGROUP.
+ * Return: a tuple (activities, checkpoint), activities being the bag of DetectActivity but only of closed
+ * activities, and checkpoint being a bytearray of the open activities and the last entity, or null if none.
+ * 
+ * Open activities are carried over to the next run through the checkpoint and output when they close, so
+ * activities spanning midnight are detected as in one run. A user without input in a run has all open
+ * activities closed. A horizon, e.g. CheckpointDetectActivity('2s', '30s'), also closes activities idle for
+ * longer than it at the end of a run, to keep checkpoints small. The "ordinal" output mode is not supported,
+ * as ordinals do not span runs.
+ * 
+ * Example:
+ * logs = LOAD 'logs/day2' AS (user, start:double, end:double, url, referrer, type, id);
+ * prev = LOAD 'checkpoints/day1' AS (user, checkpoint:bytearray);
+ * J = COGROUP logs BY user, prev BY user;
+ * R = FOREACH J { s = ORDER logs BY start;
+ *     GENERATE group AS user, FLATTEN(CheckpointDetectActivity(s.(start, end, url, referrer, type, id), prev, group)); };
+ * activities = FOREACH R GENERATE user, FLATTEN(activities);
+ * checkpoints = FOREACH (FILTER R BY checkpoint IS NOT NULL) GENERATE user, checkpoint;
+ * 
+ * @author chenxm
+ *
+ */
+public class CheckpointDetectActivity extends EvalFunc<Tuple>{
+	private String timeSpec;
+	private String horizonSpec;
+	private String outputMode;
+	private String idStrategy;
+	
+	public CheckpointDetectActivity(){
+		this("2s");
+	}
+	
+	public CheckpointDetectActivity(String timeSpec){
+		this(timeSpec, "0s");
+	}
+	
+	public CheckpointDetectActivity(String timeSpec, String horizonSpec){
+		this(timeSpec, horizonSpec, DetectActivity.OUTPUT_FULL);
+	}
+	
+	public CheckpointDetectActivity(String timeSpec, String horizonSpec, String outputMode){
+		this(timeSpec, horizonSpec, outputMode, ActivityIds.UUID_IDS);
+	}
+	
+	/**
+	 * @param timeSpec The user reading time, e.g. "2s".
+	 * @param horizonSpec The horizon to close idle activities, e.g. "30s"; "0s" to disable.
+	 * @param outputMode One of "full", "append" and "ids".
+	 * @param idStrategy One of "uuid", "seq", "hash" and "hashlong", or the class name of an ActivityIdGenerator.
+	 */
+	public CheckpointDetectActivity(String timeSpec, String horizonSpec, String outputMode, String idStrategy){
+		if ( DetectActivity.OUTPUT_ORDINAL.equals(outputMode.toLowerCase()) )
+			throw new IllegalArgumentException("Ordinal output is not supported with checkpoints.");
+		this.timeSpec = timeSpec;
+		this.horizonSpec = horizonSpec;
+		this.outputMode = outputMode;
+		this.idStrategy = idStrategy;
+		newDetector(); // check arguments
+	}
+	
+	private DetectActivity newDetector(){
+		return new DetectActivity(timeSpec, horizonSpec, outputMode, idStrategy);
+	}
+	
+	@Override
+	public Tuple exec(Tuple b) throws IOException {
+		if ( b == null || b.size() == 0 )
+			return null;
+		DetectActivity detector = newDetector();
+		byte[] checkpoint = getCheckpoint(b.size() > 1 ? b.get(1) : null);
+		if ( checkpoint != null )
+			detector.restore(checkpoint);
+		DataBag bag = (DataBag) b.get(0);
+		if ( bag == null )
+			bag = BagFactory.getInstance().newDefaultBag();
+		Tuple input = TupleFactory.getInstance().newTuple();
+		input.append(bag);
+		input.append(b.size() > 2 ? b.get(2) : null);
+		detector.accumulate(input);
+		Tuple result = TupleFactory.getInstance().newTuple();
+		if ( bag.size() == 0 ){
+			// An idle user: nothing can continue the open activities.
+			result.append(detector.getValue());
+			result.append(null);
+			return result;
+		}
+		Object[] output = detector.getValueAndCheckpoint();
+		result.append(output[0]);
+		result.append(output[1] == null ? null : new DataByteArray((byte[]) output[1]));
+		return result;
+	}
+	
+	private static byte[] getCheckpoint(Object field) throws IOException {
+		if ( field instanceof DataBag ){
+			for ( Tuple t : (DataBag) field ){
+				if ( t.size() > 0 && t.get(t.size()-1) != null )
+					return getCheckpoint(t.get(t.size()-1));
+			}
+			return null;
+		}
+		if ( field instanceof DataByteArray )
+			return ((DataByteArray) field).get();
+		return null;
+	}
+	
+	/**
+	 * The output schema is a tuple of the bag of DetectActivity and a bytearray.
+	 */
+	@Override
+	public Schema outputSchema(Schema input){
+		try {
+			Schema.FieldSchema activities = newDetector().outputSchema(input).getField(0);
+			activities.alias = "activities";
+			Schema outputTupleSchema = new Schema();
+			outputTupleSchema.add(activities);
+			outputTupleSchema.add(new Schema.FieldSchema("checkpoint", DataType.BYTEARRAY));
+			return new Schema(new Schema.FieldSchema(getSchemaName(this.getClass().getName().toLowerCase(), input),
+	                                           outputTupleSchema,
+	                                           DataType.TUPLE));
+		}catch (FrontendException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package com.piggybox.omnilab.aem;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.pig.EvalFunc;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+
+/**
+ * Split the records of a user into chunks at the gaps where AEM closes all open activities,
+ * so that a heavy user can be detected on several reducers by grouping on (user, chunk_id).
+ * Input: a bag of tuples (HttpRequestStartTime, HttpRequestEndTime, URL, Referrer, ContentType, ID ..)
+ * in ascending order of start time.
+ * Return: a bag of the input tuples, each tuple being appended by a chunk ID (int) from 0.
+ * 
+ * Gaps are the entities classified as unclassified (TYPE_UNCL) against the preceding entity.
+ * Consecutive segments between gaps are packed into a chunk while it holds at most the maximum number
+ * of records, e.g. ChunkByGap('100000'); a single segment larger than that becomes a chunk by itself.
+ * Running DetectActivity on each chunk gives exactly the activities of the unsplit run, provided that
+ * no horizon is set and IDs do not depend on the model, i.e. with "uuid" or "hash" IDs and the same user key.
+ * 
+ * Example:
+ * A = GROUP logs BY user;
+ * B = FOREACH A { s = ORDER logs BY start; GENERATE group AS user, FLATTEN(ChunkByGap(s)); };
+ * C = GROUP B BY (user, chunk_id);
+ * D = FOREACH C { s = ORDER B BY start; GENERATE FLATTEN(DetectActivity(s.(start, end, url, referrer, type, id), group.user)); };
+ * 
+ * @author chenxm
+ *
+ */
+public class ChunkByGap extends EvalFunc<DataBag>{
+	private int maxChunkSize;
+	private AEM aemModel = new AEM();
+	
+	public ChunkByGap(){
+		this("100000");
+	}
+	
+	/**
+	 * @param maxChunkSize The maximum number of records of a chunk.
+	 */
+	public ChunkByGap(String maxChunkSize){
+		this.maxChunkSize = Math.max(1, Integer.parseInt(maxChunkSize));
+	}
+	
+	@Override
+	public DataBag exec(Tuple b) throws IOException {
+		DataBag outputBag = BagFactory.getInstance().newDefaultBag();
+		if ( b == null || b.size() == 0 || b.get(0) == null )
+			return outputBag;
+		DataBag bag = (DataBag) b.get(0);
+		// The first pass finds the sizes of segments between gaps.
+		int[] segments = new int[16];
+		int segCount = 0;
+		Entity lastEntity = null;
+		for ( Tuple t : bag ){
+			Entity entity = timingEntity(t);
+			if ( lastEntity == null || aemModel.isGap(lastEntity, entity) ){
+				if ( ++segCount > segments.length )
+					segments = Arrays.copyOf(segments, segments.length * 2);
+			}
+			segments[segCount-1]++;
+			lastEntity = entity;
+		}
+		// The second pass packs segments into chunks.
+		int chunkId = -1;
+		int chunkSize = maxChunkSize;
+		int seg = -1;
+		int segLeft = 0;
+		for ( Tuple t : bag ){
+			if ( segLeft == 0 ){
+				segLeft = segments[++seg];
+				if ( chunkSize + segLeft > maxChunkSize ){
+					chunkId++;
+					chunkSize = 0;
+				}
+				chunkSize += segLeft;
+			}
+			segLeft--;
+			Tuple newT = TupleFactory.getInstance().newTuple(t.getAll());
+			newT.append(chunkId);
+			outputBag.add(newT);
+		}
+		if ( reporter != null )
+			reporter.progress();
+		return outputBag;
+	}
+	
+	/**
+	 * Make an entity carrying the timing of a tuple only, which is all that gaps depend on.
+	 */
+	static Entity timingEntity(Tuple t) throws IOException {
+		return new Entity((Double) t.get(0), (Double) t.get(1), UrlDictionary.NONE, UrlDictionary.NONE,
+				Entity.CT_OTHER, null, null);
+	}
+	
+	@Override
+	public Schema outputSchema(Schema input){
+		try {
+			Schema.FieldSchema inputFieldSchema = input.getField(0);
+			if (inputFieldSchema.type != DataType.BAG){
+				throw new RuntimeException("Expected a BAG as input");
+			}
+			Schema inputBagSchema = inputFieldSchema.schema;
+			if (inputBagSchema.getField(0).type != DataType.TUPLE){
+				throw new RuntimeException(String.format("Expected input bag to contain a TUPLE, but instead found %s",
+	                                             DataType.findTypeName(inputBagSchema.getField(0).type)));
+			}
+			Schema outputTupleSchema = inputBagSchema.getField(0).schema.clone();
+			outputTupleSchema.add(new Schema.FieldSchema("chunk_id", DataType.INTEGER));
+			return new Schema(new Schema.FieldSchema(getSchemaName(this.getClass().getName().toLowerCase(), input),
+	                                           outputTupleSchema,
+	                                           DataType.BAG));
+		}catch (CloneNotSupportedException e) {
+			throw new RuntimeException(e);
+		}catch (FrontendException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
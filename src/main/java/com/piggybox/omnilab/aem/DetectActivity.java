@@ -1,15 +1,23 @@
 package com.piggybox.omnilab.aem;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
+import org.apache.hadoop.mapreduce.Counter;
 import org.apache.pig.AccumulatorEvalFunc;
 import org.apache.pig.backend.executionengine.ExecException;
 import org.apache.pig.data.BagFactory;
@@ -19,23 +27,85 @@ import org.apache.pig.data.Tuple;
 import org.apache.pig.data.TupleFactory;
 import org.apache.pig.impl.logicalLayer.FrontendException;
 import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.tools.pigstats.PigStatusReporter;
 import org.joda.time.Period;
 
 import com.google.common.net.InternetDomainName;
+import com.piggybox.utils.LowMemoryWatcher;
+import com.piggybox.utils.PrimitiveSort;
 import com.piggybox.utils.tree.TreeNode;
 
 /**
  * The pig UDF implementing the AID algorithm of Activity-Entity Model.
  * Input: a bag of tuples (HttpRequestStartTime, HttpRequestEndTime, URL, Referrer, ContentType ..)
- * Return: a bag of tuples, each tuple being appended by an activity ID (UUID);
+ * and an optional user key, e.g. DetectActivity(records, user), to be used by the activity ID strategy.
+ * Return: a bag of tuples, each tuple being appended by an activity ID (UUID by default);
+ * 
+ * An optional watermark horizon, e.g. DetectActivity('2s', '30s'), closes any activity whose entities
+ * all end more than the horizon before the start of current entity, and flushes it to the output at once.
+ * This caps the model size of chatty users that never show a long silent gap. Entities can then no longer
+ * refer to the closed activities; a horizon well above the serial gap of AEM (8s) keeps other links intact.
+ * 
+ * The output mode, e.g. DetectActivity('2s', '0s', 'ids'), controls the size of output tuples:
+ * "full" (default) copies each input tuple and appends the activity ID;
+ * "append" appends the activity ID to the input tuple itself without copying it;
+ * "ids" returns (entity_id, activity_id) only, the entity ID being the sixth input field;
+ * "ordinal" returns (row_ordinal, activity_seq) as longs, i.e. the position of the entity in the input bag
+ * and the sequence of the activity in the user's model, to be re-joined with the input.
+ * 
+ * The activity ID strategy, e.g. DetectActivity('2s', '0s', 'full', 'hash'), is one of ActivityIds:
+ * "uuid" (default), "seq", "hash" and "hashlong", or the class name of an ActivityIdGenerator.
+ * All but "uuid" give the same IDs when a task is retried; "hashlong" outputs the activity ID as a long.
+ * 
+ * An optional reorder window, e.g. DetectActivity('2s', '0s', 'full', 'uuid', '5s'), accepts input that is
+ * only nearly sorted by start time, so that no nested ORDER BY is needed. Entities are held in a buffer
+ * until an entity starting more than the window later has been seen, and fed to the model by start time.
+ * A chunk of input more disordered than the window is sorted in the UDF before buffering, so a whole bag
+ * passed to exec() is always detected in order. Entities arriving later than the window across chunks
+ * of accumulate() can no longer be placed in order; they are fed as they come and counted in a warning.
+ * 
+ * Under heap pressure, as signaled by LowMemoryWatcher, the pending output is spilled to disk.
+ * With force-closing enabled, e.g. DetectActivity('2s', '0s', 'full', 'uuid', '0s', 'true'), the oldest
+ * half of open activities is closed and output too, which may split activities of heavy users but keeps
+ * the task alive. Forced closes are counted by the counters AEM:FORCED_CLOSE_EVENTS and AEM:FORCED_CLOSE_ACTIVITIES.
+ * 
+ * A number of threads, e.g. DetectActivity('2s', '0s', 'full', 'hash', '0s', 'false', '8'), lets exec() split
+ * a large sorted bag at the gaps where AEM closes all open activities (see ChunkByGap), detect the pieces
+ * concurrently on a fork-join pool and concatenate their output in order, which equals the sequential run.
+ * It is skipped with a reorder window, with a horizon, whose closes ahead of a gap change the output order,
+ * and with "seq" or custom ID strategies whose IDs may depend on the sequence of activities in the whole model;
+ * accumulate() is always sequential.
  * 
  * @author chenxm
  *
  */
 public class DetectActivity extends AccumulatorEvalFunc<DataBag>{
+	// Output modes
+	public static final String OUTPUT_FULL = "full";
+	public static final String OUTPUT_APPEND = "append";
+	public static final String OUTPUT_IDS = "ids";
+	public static final String OUTPUT_ORDINAL = "ordinal";
+	
 	private double readingTime;
+	private double horizon = 0; // watermark horizon in seconds, disabled if not positive
+	private String outputMode = OUTPUT_FULL;
+	private String idStrategy = ActivityIds.UUID_IDS;
+	private ActivityIdGenerator idGenerator = null; // resolved once, shared by the models of all users
+	private boolean longIds = false;
 	private AEM aemModel = null;
 	private DataBag outputBag = null;
+	private long rowOrdinal = 0; // position of next input tuple in the user bag
+	private double reorderWindow = 0; // reorder window in seconds, disabled if not positive
+	private PriorityQueue<Entity> reorderBuffer = null;
+	private double maxStart = Double.NEGATIVE_INFINITY; // the latest start time seen
+	private double releasedStart = Double.NEGATIVE_INFINITY; // the start time of the last entity fed to the model
+	private long lateEntities = 0;
+	private boolean forceClose = false; // force-close the oldest open activities under memory pressure
+	private LowMemoryWatcher memoryWatcher = LowMemoryWatcher.getInstance();
+	private long memoryEvents = 0; // low memory events seen
+	private int threads = 1; // threads to detect pieces of a bag in exec()
+	private ForkJoinPool pool = null;
+	private static final int MIN_PIECE_SIZE = 512; // the minimum number of entities detected by a thread
 	public Log myLogger = this.getLogger();
 	
 	public DetectActivity(){
@@ -43,52 +113,425 @@ public class DetectActivity extends AccumulatorEvalFunc<DataBag>{
 	}
 	
 	public DetectActivity(String timeSpec){
+		this(timeSpec, "0s");
+	}
+	
+	/**
+	 * @param timeSpec The user reading time, e.g. "2s".
+	 * @param horizonSpec The watermark horizon to close idle activities, e.g. "30s"; "0s" to disable.
+	 */
+	public DetectActivity(String timeSpec, String horizonSpec){
+		this(timeSpec, horizonSpec, OUTPUT_FULL);
+	}
+	
+	/**
+	 * @param timeSpec The user reading time, e.g. "2s".
+	 * @param horizonSpec The watermark horizon to close idle activities, e.g. "30s"; "0s" to disable.
+	 * @param outputMode One of "full", "append", "ids" and "ordinal".
+	 */
+	public DetectActivity(String timeSpec, String horizonSpec, String outputMode){
+		this(timeSpec, horizonSpec, outputMode, ActivityIds.UUID_IDS);
+	}
+	
+	/**
+	 * @param timeSpec The user reading time, e.g. "2s".
+	 * @param horizonSpec The watermark horizon to close idle activities, e.g. "30s"; "0s" to disable.
+	 * @param outputMode One of "full", "append", "ids" and "ordinal".
+	 * @param idStrategy One of "uuid", "seq", "hash" and "hashlong", or the class name of an ActivityIdGenerator.
+	 */
+	public DetectActivity(String timeSpec, String horizonSpec, String outputMode, String idStrategy){
+		this(timeSpec, horizonSpec, outputMode, idStrategy, "0s");
+	}
+	
+	/**
+	 * @param timeSpec The user reading time, e.g. "2s".
+	 * @param horizonSpec The watermark horizon to close idle activities, e.g. "30s"; "0s" to disable.
+	 * @param outputMode One of "full", "append", "ids" and "ordinal".
+	 * @param idStrategy One of "uuid", "seq", "hash" and "hashlong", or the class name of an ActivityIdGenerator.
+	 * @param reorderSpec The reorder window of nearly sorted input, e.g. "5s"; "0s" if input is sorted.
+	 */
+	public DetectActivity(String timeSpec, String horizonSpec, String outputMode, String idStrategy, String reorderSpec){
+		this(timeSpec, horizonSpec, outputMode, idStrategy, reorderSpec, "false");
+	}
+	
+	/**
+	 * @param timeSpec The user reading time, e.g. "2s".
+	 * @param horizonSpec The watermark horizon to close idle activities, e.g. "30s"; "0s" to disable.
+	 * @param outputMode One of "full", "append", "ids" and "ordinal".
+	 * @param idStrategy One of "uuid", "seq", "hash" and "hashlong", or the class name of an ActivityIdGenerator.
+	 * @param reorderSpec The reorder window of nearly sorted input, e.g. "5s"; "0s" if input is sorted.
+	 * @param forceClose "true" to force-close the oldest open activities under memory pressure.
+	 */
+	public DetectActivity(String timeSpec, String horizonSpec, String outputMode, String idStrategy, String reorderSpec,
+			String forceClose){
+		this(timeSpec, horizonSpec, outputMode, idStrategy, reorderSpec, forceClose, "1");
+	}
+	
+	/**
+	 * @param timeSpec The user reading time, e.g. "2s".
+	 * @param horizonSpec The watermark horizon to close idle activities, e.g. "30s"; "0s" to disable.
+	 * @param outputMode One of "full", "append", "ids" and "ordinal".
+	 * @param idStrategy One of "uuid", "seq", "hash" and "hashlong", or the class name of an ActivityIdGenerator.
+	 * @param reorderSpec The reorder window of nearly sorted input, e.g. "5s"; "0s" if input is sorted.
+	 * @param forceClose "true" to force-close the oldest open activities under memory pressure.
+	 * @param threads The number of threads to detect a bag in exec(), "1" to run sequentially.
+	 */
+	public DetectActivity(String timeSpec, String horizonSpec, String outputMode, String idStrategy, String reorderSpec,
+			String forceClose, String threads){
+	    this.readingTime = parseSeconds(timeSpec);
+	    this.horizon = parseSeconds(horizonSpec);
+	    this.outputMode = outputMode.toLowerCase();
+	    if ( ! (OUTPUT_FULL.equals(this.outputMode) || OUTPUT_APPEND.equals(this.outputMode) ||
+	    		OUTPUT_IDS.equals(this.outputMode) || OUTPUT_ORDINAL.equals(this.outputMode)) )
+	    	throw new IllegalArgumentException("Unknown output mode: " + outputMode);
+	    this.idStrategy = idStrategy;
+	    this.idGenerator = ActivityIds.forName(idStrategy);
+	    this.longIds = idGenerator.isLong();
+	    this.reorderWindow = parseSeconds(reorderSpec);
+	    this.forceClose = Boolean.parseBoolean(forceClose);
+	    this.threads = Math.max(1, Integer.parseInt(threads));
+		cleanup();
+	}
+	
+	/**
+	 * Make a sequential detector with the same configuration, to detect a piece of a bag.
+	 * @param parent
+	 */
+	private DetectActivity(DetectActivity parent){
+		this.readingTime = parent.readingTime;
+		this.horizon = parent.horizon;
+		this.outputMode = parent.outputMode;
+		this.idStrategy = parent.idStrategy;
+		this.idGenerator = parent.idGenerator;
+		this.longIds = parent.longIds;
+		this.forceClose = parent.forceClose;
+		this.myLogger = parent.myLogger;
+		cleanup();
+	}
+	
+	static double parseSeconds(String timeSpec){
 		Period p = new Period("PT" + timeSpec.toUpperCase());
-	    this.readingTime = p.toStandardSeconds().getSeconds();
+		return p.toStandardSeconds().getSeconds();
+	}
+	
+	/**
+	 * Detect a whole user bag, in pieces on a fork-join pool if threads are given.
+	 */
+	@Override
+	public DataBag exec(Tuple b) throws IOException {
+		String name = idStrategy.toLowerCase();
+		if ( threads <= 1 || reorderWindow > 0 || horizon > 0 || !(ActivityIds.UUID_IDS.equals(name) ||
+				ActivityIds.HASH_IDS.equals(name) || ActivityIds.HASHLONG_IDS.equals(name)) )
+			return super.exec(b);
+		DataBag bag = (DataBag) b.get(0);
+		String userKey = b.size() > 1 && b.get(1) != null ? b.get(1).toString() : null;
+		// Cut the bag at gaps into pieces of similar sizes.
+		List<Tuple> tuples = new ArrayList<Tuple>((int) bag.size());
+		List<Integer> cuts = new ArrayList<Integer>();
+		int pieceSize = Math.max(MIN_PIECE_SIZE, (int) (bag.size() / (threads * 4)));
+		int pieceStart = 0;
+		Entity lastEntity = null;
+		for ( Tuple t : bag ){
+			Entity entity = ChunkByGap.timingEntity(t);
+			if ( lastEntity != null && tuples.size() - pieceStart >= pieceSize && aemModel.isGap(lastEntity, entity) ){
+				cuts.add(tuples.size());
+				pieceStart = tuples.size();
+			}
+			tuples.add(t);
+			lastEntity = entity;
+		}
+		if ( cuts.isEmpty() )
+			return super.exec(b);
+		cuts.add(tuples.size());
+		List<Future<DataBag>> results = new ArrayList<Future<DataBag>>(cuts.size());
+		List<DetectActivity> detectors = new ArrayList<DetectActivity>(cuts.size());
+		int from = 0;
+		for ( int to : cuts ){
+			final DetectActivity detector = new DetectActivity(this);
+			final Tuple piece = TupleFactory.getInstance().newTuple();
+			piece.append(BagFactory.getInstance().newDefaultBag(tuples.subList(from, to)));
+			piece.append(userKey);
+			detectors.add(detector);
+			results.add(getPool().submit(new Callable<DataBag>(){
+				@Override
+				public DataBag call() throws Exception {
+					detector.accumulate(piece);
+					return detector.getValue();
+				}
+			}));
+			from = to;
+		}
+		// Concatenate in order, shifting the ordinals and sequences of pieces in ordinal mode.
+		DataBag result = BagFactory.getInstance().newDefaultBag();
+		long rowOffset = 0;
+		long seqOffset = 0;
+		try {
+			for ( int i = 0; i < results.size(); i++ ){
+				DataBag pieceOutput = results.get(i).get();
+				if ( OUTPUT_ORDINAL.equals(outputMode) ){
+					for ( Tuple t : pieceOutput ){
+						t.set(0, (Long) t.get(0) + rowOffset);
+						t.set(1, (Long) t.get(1) + seqOffset);
+						result.add(t);
+					}
+				} else
+					result.addAll(pieceOutput);
+				rowOffset += detectors.get(i).rowOrdinal;
+				seqOffset += detectors.get(i).aemModel.getActivitySeq();
+				if ( reporter != null )
+					reporter.progress();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ExecException("Interrupted while detecting activities: " + e);
+		} catch (ExecutionException e) {
+			throw new ExecException("Failed to detect activities: " + e.getCause(), e.getCause());
+		}
 		cleanup();
+		return result;
+	}
+	
+	private synchronized ForkJoinPool getPool(){
+		if ( pool == null )
+			pool = new ForkJoinPool(threads);
+		return pool;
 	}
 	
+	@Override
+	public void finish(){
+		if ( pool != null ){
+			pool.shutdown();
+			pool = null;
+		}
+	}
+	
+	/**
+	 * Feed a chunk of the user bag to the model. The model carries its state across chunks,
+	 * and activities closed by a gap or the watermark are streamed to the output right away.
+	 */
 	@Override
 	public void accumulate(Tuple b) throws ExecException {
-		cleanup();
-		for ( Tuple t : (DataBag) b.get(0) ){
-			Entity newEntity = new Entity(t);
-			boolean okToDump = false;
-			okToDump = aemModel.addEntityToModel(newEntity);
-			int actCnt = aemModel.size();
-			if (okToDump && actCnt > 0){
-				dumpActivitiesToBag(0, actCnt-1); // leave the last activity to add new entities.
-			}
-			//this.reporter.progress(); // Disable to pass mvn test
+		if ( b.size() > 1 && b.get(1) != null )
+			aemModel.setUserKey(b.get(1).toString());
+		DataBag bag = (DataBag) b.get(0);
+		if ( reorderWindow > 0 ){
+			reorder(bag);
+			return;
+		}
+		for ( Tuple t : bag ){
+			Entity newEntity = createEntity(t);
+			newEntity.ordinal = rowOrdinal++;
+			addEntity(newEntity);
+		}
+	}
+	
+	/**
+	 * Create an entity of the model from a tuple (start, end, URL, referrer, content type, ID ...).
+	 * @param tuple
+	 * @return
+	 * @throws ExecException
+	 */
+	private Entity createEntity(Tuple tuple) throws ExecException {
+		return aemModel.createEntity((Double)tuple.get(0),
+				(Double)tuple.get(1),
+				(String)tuple.get(2),
+				(String)tuple.get(3),
+				(String)tuple.get(4),
+				(String)tuple.get(5),
+				tuple);
+	}
+	
+	/**
+	 * Feed an entity to the model in order of start time.
+	 * @param newEntity
+	 */
+	private void addEntity(Entity newEntity) {
+		if ( memoryWatcher.getEvents() != memoryEvents )
+			relieveMemory();
+		if ( horizon > 0 )
+			dumpActivitiesToBag(aemModel.closeActivitiesBefore(newEntity.start - horizon));
+		boolean okToDump = false;
+		okToDump = aemModel.addEntityToModel(newEntity);
+		int actCnt = aemModel.size();
+		if (okToDump && actCnt > 0){
+			dumpActivitiesToBag(0, actCnt-1); // leave the last activity to add new entities.
+		}
+		//this.reporter.progress(); // Disable to pass mvn test
+	}
+	
+	/**
+	 * Feed a chunk of nearly sorted input through the reorder buffer.
+	 * The chunk is sorted at first if some entity is later than the reorder window.
+	 * @param bag
+	 * @throws ExecException
+	 */
+	private void reorder(DataBag bag) throws ExecException {
+		int n = (int) bag.size();
+		Tuple[] tuples = new Tuple[n];
+		double[] starts = new double[n];
+		boolean disordered = false;
+		double runningMax = maxStart;
+		int i = 0;
+		for ( Tuple t : bag ){
+			tuples[i] = t;
+			starts[i] = (Double) t.get(0);
+			if ( starts[i] < runningMax - reorderWindow )
+				disordered = true;
+			runningMax = Math.max(runningMax, starts[i]);
+			i++;
+		}
+		int[] order = disordered ? PrimitiveSort.stableOrder(starts, n) : null;
+		long firstOrdinal = rowOrdinal;
+		rowOrdinal += n;
+		for ( i = 0; i < n; i++ ){
+			int idx = order == null ? i : order[i];
+			Entity newEntity = createEntity(tuples[idx]);
+			newEntity.ordinal = firstOrdinal + idx;
+			maxStart = Math.max(maxStart, newEntity.start);
+			reorderBuffer.add(newEntity);
+			while ( reorderBuffer.peek().start <= maxStart - reorderWindow )
+				releaseEntity(reorderBuffer.poll());
+		}
+	}
+	
+	/**
+	 * Give up memory under heap pressure: spill the pending output,
+	 * and force-close the oldest half of open activities if enabled.
+	 */
+	private void relieveMemory(){
+		memoryEvents = memoryWatcher.getEvents();
+		int actCnt = aemModel.size();
+		if ( forceClose && actCnt > 1 ){
+			int closing = actCnt / 2; // never the last activity, which takes new entities.
+			dumpActivitiesToBag(0, closing);
+			incrementCounter("FORCED_CLOSE_EVENTS", 1);
+			incrementCounter("FORCED_CLOSE_ACTIVITIES", closing);
+			if ( myLogger != null )
+				myLogger.warn("Low memory: force-closed " + closing + " of " + actCnt + " open activities.");
 		}
+		outputBag.spill();
+	}
+	
+	static void incrementCounter(String name, long amount){
+		PigStatusReporter reporter = PigStatusReporter.getInstance();
+		Counter counter = reporter == null ? null : reporter.getCounter("AEM", name);
+		if ( counter != null )
+			counter.increment(amount);
+	}
+	
+	private void releaseEntity(Entity entity) {
+		if ( entity.start < releasedStart )
+			lateEntities++;
+		else
+			releasedStart = entity.start;
+		addEntity(entity);
 	}
 
 	@Override
 	public void cleanup() {
 		this.outputBag = BagFactory.getInstance().newDefaultBag();
 		this.aemModel = new AEM(readingTime, this.myLogger); // set to 2.5s
+		// Activities are output by their sequences only in ordinal mode, so they are left unnamed.
+		this.aemModel.setIdGenerator(OUTPUT_ORDINAL.equals(outputMode) ? null : idGenerator);
+		this.rowOrdinal = 0;
+		this.reorderBuffer = new PriorityQueue<Entity>(64, BY_START);
+		this.maxStart = Double.NEGATIVE_INFINITY;
+		this.releasedStart = Double.NEGATIVE_INFINITY;
+		this.lateEntities = 0;
+		this.memoryEvents = memoryWatcher.getEvents();
 	}
+	
+	// Order of the reorder buffer: by start time, then by input position.
+	private static final Comparator<Entity> BY_START = new Comparator<Entity>(){
+		@Override
+		public int compare(Entity e1, Entity e2) {
+			int c = Double.compare(e1.start, e2.start);
+			return c != 0 ? c : (e1.ordinal < e2.ordinal ? -1 : (e1.ordinal == e2.ordinal ? 0 : 1));
+		}
+	};
 
 	@Override
 	public DataBag getValue() {
+		while ( ! reorderBuffer.isEmpty() )
+			releaseEntity(reorderBuffer.poll());
+		if ( lateEntities > 0 && myLogger != null )
+			myLogger.warn(lateEntities + " entities arrived later than the reorder window and were detected out of order.");
 		dumpActivitiesToBag(0, aemModel.size()); // dump all activities.
 		return this.outputBag;
 	}
 	
+	/**
+	 * Seed the model with the open activities of a checkpoint, before any input.
+	 * @param checkpoint
+	 * @throws IOException
+	 */
+	void restore(byte[] checkpoint) throws IOException {
+		AEMCheckpoint.read(aemModel, checkpoint);
+	}
+	
+	/**
+	 * Get the output of closed activities and checkpoint the open ones, which are left out of the output.
+	 * Activities idle for longer than the horizon are closed first, if a horizon is set.
+	 * @return The output and the checkpoint, or null for the checkpoint if no activity is open.
+	 * @throws IOException
+	 */
+	Object[] getValueAndCheckpoint() throws IOException {
+		while ( ! reorderBuffer.isEmpty() )
+			releaseEntity(reorderBuffer.poll());
+		Entity lastEntity = aemModel.getLastEntity();
+		if ( horizon > 0 && lastEntity != null )
+			dumpActivitiesToBag(aemModel.closeActivitiesBefore(lastEntity.start - horizon));
+		byte[] checkpoint = aemModel.size() > 0 ? AEMCheckpoint.write(aemModel) : null;
+		return new Object[]{this.outputBag, checkpoint};
+	}
+	
 	/**
 	 * Dump activities from startIndex, inclusive, to endIndex, exclusive to the outputBag.
 	 * @param startIndex
 	 * @param endIndex
 	 */
 	private void dumpActivitiesToBag(int startIndex, int endIndex){
-		for ( Activity act : aemModel.getActivities(startIndex, endIndex)){
+		dumpActivitiesToBag(aemModel.getActivities(startIndex, endIndex));
+		aemModel.removeActivities(startIndex, endIndex);
+	}
+	
+	/**
+	 * Dump given activities to the outputBag. It is up to the caller to remove them from the model.
+	 * @param activities
+	 */
+	private void dumpActivitiesToBag(List<Activity> activities){
+		for ( Activity act : activities){
 			for ( Entity entity : act.getAllEntities() ){
-				Tuple newT = TupleFactory.getInstance().newTuple(entity.getTuple().getAll());
-				newT.append(act.getID());
-				this.outputBag.add(newT);
+				this.outputBag.add(outputTuple(entity, act));
 			}
 		}
-		aemModel.removeActivities(startIndex, endIndex);
+	}
+	
+	/**
+	 * Make the output tuple of an entity according to the output mode.
+	 * @param entity
+	 * @param act The activity of the entity.
+	 * @return
+	 */
+	private Tuple outputTuple(Entity entity, Activity act){
+		Tuple newT;
+		Object activityId = aemModel.getActivityID(act);
+		if ( OUTPUT_APPEND.equals(outputMode) ){
+			newT = (Tuple) entity.getPayload();
+			newT.append(activityId);
+		} else if ( OUTPUT_IDS.equals(outputMode) ){
+			newT = TupleFactory.getInstance().newTuple();
+			newT.append(entity.getID());
+			newT.append(activityId);
+		} else if ( OUTPUT_ORDINAL.equals(outputMode) ){
+			newT = TupleFactory.getInstance().newTuple();
+			newT.append(entity.ordinal);
+			newT.append(act.getSeq());
+		} else {
+			newT = TupleFactory.getInstance().newTuple(((Tuple) entity.getPayload()).getAll());
+			newT.append(activityId);
+		}
+		return newT;
 	}
 
 	/**
@@ -132,8 +575,20 @@ public class DetectActivity extends AccumulatorEvalFunc<DataBag>{
 				throw new RuntimeException(String.format("Expected first element of tuple to be a CHARARRAY, but instead found %s",
 	                                             DataType.findTypeName(inputTupleSchema.getField(0).type)));
 			}
-			Schema outputTupleSchema = inputTupleSchema.clone();
-			outputTupleSchema.add(new Schema.FieldSchema("activity_id", DataType.CHARARRAY));
+			Schema outputTupleSchema;
+			byte idType = longIds ? DataType.LONG : DataType.CHARARRAY;
+			if ( OUTPUT_IDS.equals(outputMode) ){
+				outputTupleSchema = new Schema();
+				outputTupleSchema.add(new Schema.FieldSchema("entity_id", DataType.CHARARRAY));
+				outputTupleSchema.add(new Schema.FieldSchema("activity_id", idType));
+			} else if ( OUTPUT_ORDINAL.equals(outputMode) ){
+				outputTupleSchema = new Schema();
+				outputTupleSchema.add(new Schema.FieldSchema("row_ordinal", DataType.LONG));
+				outputTupleSchema.add(new Schema.FieldSchema("activity_seq", DataType.LONG));
+			} else {
+				outputTupleSchema = inputTupleSchema.clone();
+				outputTupleSchema.add(new Schema.FieldSchema("activity_id", idType));
+			}
 			return new Schema(new Schema.FieldSchema(getSchemaName(this.getClass().getName().toLowerCase(), input),
 	                                           outputTupleSchema,
 	                                           DataType.BAG));
@@ -0,0 +1,64 @@
+package com.piggybox.omnilab.aem;
+
+import com.google.common.net.InternetDomainName;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A bounded LRU cache resolving URLs to their top private domains, e.g. "www.baidu.com" to "baidu.com".
+ * Results are cached by host, so that the regex and InternetDomainName work is done once per host.
+ * @author chenxm
+ */
+class DomainCache {
+    private static final Pattern HOST_PATTERN = Pattern.compile("^(?:\\w+:?//)?([^:\\/\\?&]+)", Pattern.CASE_INSENSITIVE);
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private final Map<String, String> domains;
+
+    public DomainCache(){
+        this(DEFAULT_CAPACITY);
+    }
+
+    public DomainCache(final int capacity){
+        this.domains = new LinkedHashMap<String, String>(16, 0.75f, true){
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Get the top private domain of given URL.
+     * @param url
+     * @return The top private domain, the host if it is not under a public suffix, or null for a null URL.
+     */
+    public String getTopPrivateDomain(String url){
+        String host = getHost(url);
+        if ( host == null )
+            return null;
+        String tpd = domains.get(host);
+        if ( tpd == null ){
+            tpd = host;
+            try {
+                tpd = InternetDomainName.from(host).topPrivateDomain().toString();
+            } catch (Exception e) {}
+            domains.put(host, tpd);
+        }
+        return tpd;
+    }
+
+    private String getHost(String url){
+        if (url != null ){
+            Matcher matcher = HOST_PATTERN.matcher(url);
+            if ( matcher.find() ){
+                return matcher.group(1);
+            }
+        }
+        return url;
+    }
+}
@@ -1,75 +1,79 @@
 package com.piggybox.omnilab.aem;
 
 import com.piggybox.utils.tree.TreeNode;
-import org.apache.pig.backend.executionengine.ExecException;
-import org.apache.pig.data.Tuple;
 
 /**
  * A POJO class to represent entity in AEM.
+ * The entity is kept compact: timestamps are primitives, URLs are interned to int IDs
+ * of the owning model's UrlDictionary, and the content type is reduced to a byte code.
+ * Use AEM.createEntity() to build entities of a model.
  * @author chenxm
  */
 class Entity {
-    public Double start;	// the start time
-    public Double end;	// the end time
-    public String url;
-    public String referrer;
-    public String type;
-    public Integer aemLastType = null; // classified type against the last entity.
-    public Integer aemPredType = null; // classified type against its preceding entity.
+    // Content type codes
+    public static final byte CT_OTHER = 0;
+    public static final byte CT_TEXT = 1; // textual content, e.g. "text/html"
+
+    public double start;	// the start time
+    public double end;	// the end time
+    public int urlId = UrlDictionary.NONE; // interned URL ID
+    public int refId = UrlDictionary.NONE; // interned referrer ID
+    public byte type = CT_OTHER;
+    public byte aemLastType = -1; // classified type against the last entity.
+    public byte aemPredType = -1; // classified type against its preceding entity.
     public boolean isDummy = false; // If this entity is dummy.
     //E.g. if a referrer entity is lost but some entities refer to it,
     //we create a dummy referrer entity to lead followers.
     public boolean hasFakeReferrer = false; // It indicates that this entity is linked to its preceding entity without referrer.
+    public Activity activity = null; // the activity owning this entity, maintained by Activity.
+    public String domain = null; // top private domain of the URL, see AEM.getDomain().
+    public boolean domainResolved = false;
+    public long ordinal = -1; // position of the entity in the input, if known.
 
     private static final double DUR_LOW_BOUND = 0.1; //# sec, a lower-bound duration
     private String ID = null;
-    private Tuple originalTuple = null;
+    private Object payload = null; // the original record, e.g. a Pig tuple
     private TreeNode node = null; // the node this entity linked to.
 
     /**
-     * Initialize an entity with a tuple.
-     * @param tuple
-     * @throws org.apache.pig.backend.executionengine.ExecException
-     */
-    public Entity(Tuple tuple) throws ExecException {
-        this((Double)tuple.get(0),
-                (Double)tuple.get(1),
-                (String)tuple.get(2),
-                (String)tuple.get(3),
-                (String)tuple.get(4),
-                (String)tuple.get(5),
-                tuple);
-    }
-
-    /**
-     * Private initialization of an entity with six-fields.
+     * Initialize an entity with interned fields.
      * @param start
-     * @param end
-     * @param url
-     * @param referrer
-     * @param type
+     * @param end The end time, or null to add a minimum duration to start.
+     * @param urlId Interned URL ID.
+     * @param refId Interned referrer ID.
+     * @param type Content type code.
      * @param id
+     * @param payload The original record carried along, e.g. a Pig tuple.
      */
-    public Entity(Double start, Double end, String url, String referrer, String type, String id, Tuple original){
+    public Entity(double start, Double end, int urlId, int refId, byte type, String id, Object payload){
         this.start = start;
         if ( end == null )
             this.end = start + DUR_LOW_BOUND; // simply calculation to add a minimum duration.
         else
             this.end = end;
-        this.url = url;
-        this.referrer = referrer;
+        this.urlId = urlId;
+        this.refId = refId;
         this.type = type;
         this.ID = id;
         this.isDummy = false;
         this.hasFakeReferrer = false;
         this.node = new TreeNode(this);
-        this.originalTuple = original;
-        if ( original == null )
-            this.isDummy = true;
+        this.payload = payload;
     }
 
-    public Tuple getTuple(){
-        return this.originalTuple;
+    /**
+     * Get the content type code of a content type string.
+     * @param contentType
+     * @return
+     */
+    public static byte typeCode(String contentType){
+        if ( contentType != null && contentType.contains("text"))
+            return CT_TEXT;
+        return CT_OTHER;
+    }
+
+    public Object getPayload(){
+        return this.payload;
     }
 
     /**
@@ -112,9 +116,7 @@ class Entity {
      * @return Time difference
      */
     public double headDiff(Entity e){
-        double s1 = this.start;
-        double s2 = e.start;
-        return Math.abs(s1-s2);
+        return Math.abs(this.start - e.start);
     }
 
     /**
@@ -123,20 +125,15 @@ class Entity {
      * @return
      */
     public double tailDiff(Entity e){
-        double e1 = this.end;
-        double e2 = e.end;
-        return Math.abs(e1-e2);
+        return Math.abs(this.end - e.end);
     }
 
     /**
      * Check if the entity is a base element of web page, e.g. a HTML file
      * which describes the textual content and framework of a web page.
-     * @param e
      */
     public boolean isWebPageBase(){
-        if ( this.type != null && this.type.contains("text"))
-            return true;
-        return false;
+        return this.type == CT_TEXT;
     }
 
     /**
@@ -152,7 +149,7 @@ class Entity {
      * @return
      */
     public String getID(){
-        return this.ID.toString();
+        return this.ID;
     }
 
     /**
@@ -161,8 +158,6 @@ class Entity {
      * @return
      */
     public boolean isPredEntity(Entity e){
-        if ( this.url != null && e.referrer != null && this.url.equals(e.referrer))
-            return true;
-        return false;
+        return this.urlId != UrlDictionary.NONE && this.urlId == e.refId;
     }
 }
@@ -0,0 +1,148 @@
+package com.piggybox.omnilab.aem;
+
+import java.io.IOException;
+
+import org.apache.pig.Accumulator;
+import org.apache.pig.Algebraic;
+import org.apache.pig.EvalFunc;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+
+import com.piggybox.utils.SimpleEvalFunc;
+
+/**
+ * Given a bag of (STime, ETime) pairs, the completion time over all valid pairs is calculated.
+ * I.e., D = max(ETime)-min{STime}, the same as PerceivedCompletionTime('1.0').
+ *
+ * As all pairs are involved whatever the bag order, it is Algebraic: the partial state of a group
+ * is (min STime, max ETime, count) and is combined map-side exactly.
+ * @author chenxm
+ *
+ */
+public class FullCompletionTime extends SimpleEvalFunc<Double> implements Algebraic, Accumulator<Double>{
+	private static TupleFactory tupleFactory = TupleFactory.getInstance();
+	private Double activityStart = null;
+	private Double activityEnd = null;
+
+	@Override
+	public void cleanup(){
+		activityStart = null;
+		activityEnd = null;
+	}
+
+	public Double call(DataBag b) throws IOException {
+		cleanup();
+		accumulate(tupleFactory.newTuple(b));
+		Double result = getValue();
+		cleanup();
+		return result;
+	}
+
+	@Override
+	public void accumulate(Tuple b) throws IOException {
+		Tuple state = partial((DataBag) b.get(0));
+		merge(state);
+	}
+
+	@Override
+	public Double getValue() {
+		if ( activityStart == null || activityEnd == null )
+			return null;
+		return activityEnd - activityStart;
+	}
+
+	private void merge(Tuple state) throws IOException {
+		Double s = (Double) state.get(0);
+		Double e = (Double) state.get(1);
+		if ( s != null && (activityStart == null || s < activityStart) )
+			activityStart = s;
+		if ( e != null && (activityEnd == null || e > activityEnd) )
+			activityEnd = e;
+	}
+
+	@Override
+	public String getInitial() {
+		return Initial.class.getName();
+	}
+
+	@Override
+	public String getIntermed() {
+		return Intermed.class.getName();
+	}
+
+	@Override
+	public String getFinal() {
+		return Final.class.getName();
+	}
+
+	/**
+	 * The partial state (min STime, max ETime, count) of a bag of pairs, invalid pairs counted but skipped.
+	 */
+	private static Tuple partial(DataBag entityBag) throws IOException {
+		Double start = null;
+		Double end = null;
+		long count = 0;
+		if ( entityBag != null ){
+			for ( Tuple t : entityBag ){
+				count++;
+				Double s = (Double) t.get(0);
+				Double e = (Double) t.get(1);
+				if ( s == null || e == null )
+					continue; // Skip invalid tuples
+				if ( start == null || s < start )
+					start = s;
+				if ( end == null || e > end )
+					end = e;
+			}
+		}
+		return state(start, end, count);
+	}
+
+	/**
+	 * Merge a bag of partial states.
+	 */
+	private static Tuple combine(DataBag states) throws IOException {
+		FullCompletionTime merged = new FullCompletionTime();
+		long count = 0;
+		for ( Tuple state : states ){
+			merged.merge(state);
+			count += (Long) state.get(2);
+		}
+		return state(merged.activityStart, merged.activityEnd, count);
+	}
+
+	private static Tuple state(Double start, Double end, long count) throws IOException {
+		Tuple result = tupleFactory.newTuple(3);
+		result.set(0, start);
+		result.set(1, end);
+		result.set(2, count);
+		return result;
+	}
+
+	public static class Initial extends EvalFunc<Tuple> {
+		@Override
+		public Tuple exec(Tuple input) throws IOException {
+			return partial((DataBag) input.get(0));
+		}
+	}
+
+	public static class Intermed extends EvalFunc<Tuple> {
+		@Override
+		public Tuple exec(Tuple input) throws IOException {
+			return combine((DataBag) input.get(0));
+		}
+	}
+
+	public static class Final extends EvalFunc<Double> {
+		@Override
+		public Double exec(Tuple input) throws IOException {
+			Tuple state = combine((DataBag) input.get(0));
+			Double start = (Double) state.get(0);
+			Double end = (Double) state.get(1);
+			if ( start == null || end == null )
+				return null;
+			return end - start;
+		}
+	}
+}
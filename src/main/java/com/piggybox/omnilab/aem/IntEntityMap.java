@@ -0,0 +1,99 @@
+package com.piggybox.omnilab.aem;
+
+import java.util.Arrays;
+
+/**
+ * A small open-addressing hash map from non-negative int keys to entities.
+ * It avoids boxing keys and allocating an entry object per mapping.
+ * @author chenxm
+ */
+class IntEntityMap {
+    private static final int EMPTY = -1;
+    private int[] keys;
+    private Entity[] values;
+    private int size = 0;
+
+    public IntEntityMap(){
+        this(4);
+    }
+
+    public IntEntityMap(int expected){
+        int cap = 4;
+        while ( cap < expected * 2 )
+            cap <<= 1;
+        allocate(cap);
+    }
+
+    private void allocate(int capacity){
+        keys = new int[capacity];
+        values = new Entity[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    private int slot(int key){
+        int mask = keys.length - 1;
+        int h = key * 0x9E3779B9;
+        int i = (h ^ (h >>> 16)) & mask;
+        while ( keys[i] != EMPTY && keys[i] != key )
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    public Entity get(int key){
+        if ( key < 0 )
+            return null;
+        return values[slot(key)];
+    }
+
+    public void put(int key, Entity value){
+        if ( key < 0 )
+            return;
+        int i = slot(key);
+        if ( keys[i] == EMPTY ){
+            keys[i] = key;
+            size++;
+        }
+        values[i] = value;
+        if ( size * 2 > keys.length )
+            rehash(keys.length * 2);
+    }
+
+    public void remove(int key){
+        if ( key < 0 )
+            return;
+        int mask = keys.length - 1;
+        int i = slot(key);
+        if ( keys[i] == EMPTY )
+            return;
+        keys[i] = EMPTY;
+        values[i] = null;
+        size--;
+        // Shift following entries of the same cluster back into place.
+        for ( int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask ){
+            int k = keys[j];
+            Entity v = values[j];
+            keys[j] = EMPTY;
+            values[j] = null;
+            int s = slot(k);
+            keys[s] = k;
+            values[s] = v;
+        }
+    }
+
+    public int size(){
+        return size;
+    }
+
+    private void rehash(int capacity){
+        int[] oldKeys = keys;
+        Entity[] oldValues = values;
+        allocate(capacity);
+        for ( int i = 0; i < oldKeys.length; i++ ){
+            if ( oldKeys[i] != EMPTY ){
+                int j = slot(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
@@ -1,12 +1,10 @@
 package com.piggybox.omnilab.aem;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.Set;
 
-import org.apache.pig.EvalFunc;
+import org.apache.pig.AccumulatorEvalFunc;
 import org.apache.pig.data.BagFactory;
 import org.apache.pig.data.DataBag;
 import org.apache.pig.data.DataType;
@@ -17,95 +15,54 @@ import org.apache.pig.impl.logicalLayer.schema.Schema;
 
 /**
  * Label an acitivity as one of "start", "forward","backward", and "refresh".
+ * Activities are taken in order of their first requests and compared with the past 200 activities
+ * by their first URLs, see RevisitLabeler.
+ * 
+ * As an Accumulator, labels are emitted as the requests of a user stream in, so the requests are not
+ * materialized; only the first URLs of the past 200 activities and the IDs of the activities labeled
+ * are kept. Like the output bag, the latter grow with the number of activities rather than requests.
  * @author chenxm
  *
  */
-public class LabelActivity extends EvalFunc<DataBag>{
+public class LabelActivity extends AccumulatorEvalFunc<DataBag>{
 	private DataBag outputBag;
-	private Map<String, Integer> aidIndexMap;
-	private List<ActHelper> activities;
-	private long total = 0;
+	private Set<String> seenAids; // activities labeled so far
+	private RevisitLabeler labeler;
 	
 	public LabelActivity(){
-		init();
-	}
-	
-	public void init() {
-		this.outputBag = BagFactory.getInstance().newDefaultBag();
-		this.activities = new LinkedList<ActHelper>();
-		this.aidIndexMap = new HashMap<String, Integer>();
-		this.total = 0;
+		cleanup();
 	}
 	
 	@Override
-	public DataBag exec(Tuple b) throws IOException {
-		init();
+	public void accumulate(Tuple b) throws IOException {
 		for ( Tuple t : (DataBag) b.get(0) ){
-			this.total += 1;
 			String url = (String) t.get(1);
 			String aid = (String) t.get(2);
 			if ( url == null || aid == null)
 				continue;
-			addHttpEntity(aid, url);
-			int size = this.activities.size();
-			int left = 300;
-			if ( size >= 2000 ){
-				labelAct(left);
-				this.activities.subList(0, size-left).clear();
-				updateIndexMap();
-			}
+			if ( ! seenAids.add(aid) )
+				continue; // only the first request of an activity counts
+			Tuple newT = TupleFactory.getInstance().newTuple();
+			newT.append(aid);
+			newT.append(labeler.label(url));
+			this.outputBag.add(newT);
 		}
-		labelAct(0);
-		System.out.println("***********"+total);
-		return this.outputBag;
+		if ( reporter != null )
+			reporter.progress();
 	}
 	
-	private void addHttpEntity(String aid, String url){
-		if ( this.aidIndexMap.containsKey(aid) ){
-			int index = this.aidIndexMap.get(aid);
-			ActHelper act = activities.get(index);
-			act.addRequst(url);
-		} else {
-			ActHelper newAct = new ActHelper(aid, url);
-			this.aidIndexMap.put(aid, this.activities.size());
-			this.activities.add(newAct);
-		}
+	@Override
+	public DataBag getValue() {
+		return this.outputBag;
 	}
 	
-	private void labelAct(int left){
-		for ( int i = 0; i < activities.size()-left; i++){
-			String lab = "forward";
-			if ( i == 0){
-				lab = "start";
-			} else if ( i > 0 ){
-				for ( int j = i-1; j >= 0 && j >= i-200; j--){ // past 200 activities
-					if ( activities.get(i).isEqual(activities.get(j)) ){
-						if ( i - j == 1 )
-							lab = "refresh";
-						else
-							lab = "backward";
-						break;
-					}
-				}
-			}
-			Tuple newT = TupleFactory.getInstance().newTuple();
-			newT.append(activities.get(i).aid);
-			newT.append(lab);
-//			newT.append(activities.get(i).size());		// for debugging
-//			newT.append(activities.get(i).assembleUrls()); // for debugging
-			this.outputBag.add(newT);
-			reporter.progress("LabelActivity is running: " + i + "th activity.");
-		}
+	@Override
+	public void cleanup() {
+		this.outputBag = BagFactory.getInstance().newDefaultBag();
+		this.seenAids = new HashSet<String>();
+		this.labeler = new RevisitLabeler();
 	}
 	
-	private void updateIndexMap(){
-		this.aidIndexMap.clear();
-		for( int index =0; index < this.activities.size(); index++){
-			String aid = this.activities.get(index).aid;
-			this.aidIndexMap.put(aid, index);
-		}
-	}
-
 	/**
 	 * The output schema of AEM UDF.
 	 * Bag in bag out. But the output bag elements are appended by an activityID.
@@ -1,24 +1,60 @@
 package com.piggybox.omnilab.aem;
 
 import java.io.IOException;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
-import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 
 import org.apache.commons.logging.Log;
-import org.apache.pig.EvalFunc;
+import org.apache.pig.AccumulatorEvalFunc;
 import org.apache.pig.data.BagFactory;
 import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
 import org.apache.pig.data.Tuple;
 import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.util.UDFContext;
 
 /**
  * Generate measures related to performance for each activity.
+ *
+ * Measures are updated per entity with running primitive statistics, so an activity is never buffered
+ * as a whole; as an Accumulator, only the trailing entities beyond the given portion of those seen so far
+ * are held until it is known whether they are measured, and only by the fields measured. Optional summaries, e.g.
+ * MeasureActivity('0.95', 'true', '50,90'), append the variance, min and max of the latencies, jitters
+ * and entity data rates, and then their percentiles, for which the values are kept.
+ *
+ * By default, the fields of the HTTP record are read at fixed positions of the 52-column record. In the narrow
+ * mode, e.g. MeasureActivity('0.95', 'false', '', 'narrow'), they are bound by name from the input schema in any
+ * order, so that only these columns need to be projected before grouping by activity:
+ * ap, src_rtt_avg, dst_rtt_avg, src_rtt_std, dst_rtt_std, req_time, rsp_time, rsp_dur, req_payload, rsp_payload,
+ * req_url, req_host, req_ref, rsp_content_type, interrupted and label, the last being optional.
+ * Other names may be given in this order instead of 'narrow', separated by commas.
+ *
+ * By default, the portion keeps the first entities in bag order. Trimmed by quantile, e.g.
+ * MeasureActivity('0.95', 'false', '', 'wide', 'quantile'), it keeps the entities of the smallest end time
+ * (rsp_time+rsp_dur) instead, which are buffered and found by selection when the activity is complete.
+ * A buffered entity keeps only the 16 fields measured, its strings shared with equal ones of the activity.
  * @author chenxm
  */
-public class MeasureActivity extends EvalFunc<DataBag>{
+public class MeasureActivity extends AccumulatorEvalFunc<DataBag>{
+	private static final int SRC_LAT = 0, DST_LAT = 1, SRC_JITTER = 2, DST_JITTER = 3, ENTITY_RATE = 4;
+	public static final String WIDE_INPUT = "wide";
+	public static final String NARROW_INPUT = "narrow";
+	private static final String[] FIELD_NAMES = new String[]{"ap", "src_rtt_avg", "dst_rtt_avg", "src_rtt_std",
+		"dst_rtt_std", "req_time", "rsp_time", "rsp_dur", "req_payload", "rsp_payload", "req_url", "req_host",
+		"req_ref", "rsp_content_type", "interrupted", "label"};
+	// positions of the fields in the 52-column HTTP record, in order of FIELD_NAMES
+	private static final int[] WIDE_POSITIONS = new int[]{1, 13, 14, 15, 16, 30, 33, 34, 36, 37, 39, 41, 43, 46, 50, 51};
+	private static final int AP = 0, SRC_RTT_AVG = 1, DST_RTT_AVG = 2, SRC_RTT_STD = 3, DST_RTT_STD = 4, REQ_TIME = 5,
+			RSP_TIME = 6, RSP_DUR = 7, REQ_PL = 8, RSP_PL = 9, REQ_URL = 10, REQ_HOST = 11, REQ_REF = 12, RSP_CT = 13,
+			ITRR = 14, LABEL = 15;
+	private static final String POSITIONS_PROPERTY = "measureactivity.positions";
 	private DataBag outputBag; // output result
 	private String activityAddress = null; // URL of this activity
 	private String activityLabel = null; // refresh,stop,backward,...
@@ -27,29 +63,99 @@ public class MeasureActivity extends EvalFunc<DataBag>{
 	private Double activityEnd = null;
 	private long activitySize = 0;
 	private long activityVol = 0; // number of entities
-	private List<Double> flowSrcLat = new LinkedList<Double>(); // latencies
-	private List<Double> flowDstLat = new LinkedList<Double>();
-	private List<Double> flowSrcJitter = new LinkedList<Double>(); // jitter
-	private List<Double> flowDstJitter = new LinkedList<Double>();
-	private List<Double> entityDataRates = new LinkedList<Double>(); // data rates
+	private long seen = 0; // number of entities offered
+	private LinkedList<Request> pending = new LinkedList<Request>(); // entities not yet known to be measured
+	private Map<String, String> strings = new HashMap<String, String>(); // strings of the buffered entities
+	private RunningStats[] stats; // latencies, jitter and data rates
 	private Set<String> hostSet = new HashSet<String>();
 	private double portion = 1.0;
+	private boolean byQuantile = false;
+	private boolean withSummaries = false;
+	private double[] percentiles = new double[0];
+	private int offset = 0; // position of the first HTTP record field
+	private boolean withLabel = true;
+	private String[] fieldNames = null; // names to bind in the narrow mode, or null for fixed positions
+	private int[] positions = WIDE_POSITIONS; // positions of the fields, or null if not bound yet
+	private String signature = null;
 	private Log logger = this.getLogger();
-	
+
 	public MeasureActivity(){
 		this(0.95);
 	}
-	
+
 	public MeasureActivity(double portion){
-		outputBag = BagFactory.getInstance().newDefaultBag();
+		this(portion, false, new double[0]);
+	}
+
+	public MeasureActivity(String portion){
+		this(portion, "false", "");
+	}
+
+	/**
+	 * @param portion (Percentage) controls the number of entities involved, e.g. "0.95".
+	 * @param withSummaries If the variance, min and max are appended, e.g. "true".
+	 * @param percentiles Percentiles to append, separated by commas, e.g. "50,90,99"; "" for none.
+	 */
+	public MeasureActivity(String portion, String withSummaries, String percentiles){
+		this(portion, withSummaries, percentiles, WIDE_INPUT);
+	}
+
+	/**
+	 * @param inputMode "wide" to read the 52-column HTTP record, "narrow" to bind fields by their default names,
+	 * or the names of the 16 fields separated by commas.
+	 */
+	public MeasureActivity(String portion, String withSummaries, String percentiles, String inputMode){
+		this(portion, withSummaries, percentiles, inputMode, PerceivedCompletionTime.TRIM_BY_ORDER);
+	}
+
+	/**
+	 * @param trim "order" to measure the first entities in bag order, or "quantile" to measure those ending first.
+	 */
+	public MeasureActivity(String portion, String withSummaries, String percentiles, String inputMode, String trim){
+		this(Double.parseDouble(portion), Boolean.parseBoolean(withSummaries), parsePercentiles(percentiles));
+		if ( NARROW_INPUT.equals(inputMode) ){
+			this.fieldNames = FIELD_NAMES;
+		} else if ( ! WIDE_INPUT.equals(inputMode) ){
+			this.fieldNames = inputMode.split(",");
+			if ( fieldNames.length != FIELD_NAMES.length )
+				throw new IllegalArgumentException("Expected " + FIELD_NAMES.length + " field names, but found " + fieldNames.length);
+			for ( int i = 0; i < fieldNames.length; i++ )
+				fieldNames[i] = fieldNames[i].trim();
+		}
+		if ( fieldNames != null )
+			this.positions = null;
+		if ( PerceivedCompletionTime.TRIM_BY_QUANTILE.equals(trim) )
+			this.byQuantile = true;
+		else if ( ! PerceivedCompletionTime.TRIM_BY_ORDER.equals(trim) )
+			throw new IllegalArgumentException("Unknown trim: " + trim);
+	}
+
+	private MeasureActivity(double portion, boolean withSummaries, double[] percentiles){
 		this.portion = portion;
+		this.withSummaries = withSummaries;
+		this.percentiles = percentiles;
+		this.stats = new RunningStats[ENTITY_RATE+1];
+		for ( int i = 0; i < stats.length; i++ )
+			stats[i] = new RunningStats(percentiles.length > 0);
+		cleanup();
 	}
-	
+
+	private static double[] parsePercentiles(String spec){
+		if ( spec.trim().length() == 0 )
+			return new double[0];
+		String[] values = spec.split(",");
+		double[] result = new double[values.length];
+		for ( int i = 0; i < values.length; i++ )
+			result[i] = Double.parseDouble(values[i].trim());
+		return result;
+	}
+
 	/**
 	 * The variables MUST be reset for a new input tuple.
 	 */
-	private void cleanup() {
-		outputBag.clear();
+	@Override
+	public void cleanup() {
+		outputBag = BagFactory.getInstance().newDefaultBag();
 		activityAddress = null;
 		activityLabel = null;
 		apName = null;
@@ -57,144 +163,389 @@ public class MeasureActivity extends EvalFunc<DataBag>{
 		activityEnd = null;
 		activitySize = 0;
 		activityVol = 0;
-		flowSrcLat.clear();
-		flowDstLat.clear();
-		flowSrcJitter.clear();
-		flowDstJitter.clear();
-		entityDataRates.clear();
+		seen = 0;
+		pending.clear();
+		strings.clear();
+		for ( RunningStats s : stats )
+			s.clear();
 		hostSet.clear();
 	}
-	
+
+	@Override
+	public void accumulate(Tuple b) throws IOException {
+		if ( positions == null )
+			bindPositions();
+		for ( Tuple t : (DataBag) b.get(0) )
+			offer(t);
+	}
+
+	@Override
+	public void setUDFContextSignature(String signature){
+		this.signature = signature;
+	}
+
+	private Properties getProperties(){
+		return UDFContext.getUDFContext().getUDFProperties(this.getClass(), new String[]{signature});
+	}
+
+	/**
+	 * Bind the narrow input by the positions found by outputSchema() at the front end,
+	 * or by the input schema if it is known here.
+	 * @throws IOException
+	 */
+	private void bindPositions() throws IOException {
+		String bound = getProperties().getProperty(POSITIONS_PROPERTY);
+		if ( bound == null && getInputSchema() != null )
+			bound = findPositions(getInputSchema());
+		if ( bound == null )
+			throw new IOException("No input schema to bind fields by name: " + Arrays.toString(fieldNames));
+		String[] values = bound.split(",");
+		int[] result = new int[values.length];
+		for ( int i = 0; i < values.length; i++ )
+			result[i] = Integer.parseInt(values[i]);
+		this.withLabel = result[LABEL] >= 0;
+		this.positions = result;
+	}
+
+	/**
+	 * Find the positions of the named fields in the records of the input bag.
+	 * @param input
+	 * @return The positions separated by commas, -1 for a missing label.
+	 * @throws FrontendException If the input is untyped or a field is missing.
+	 */
+	private String findPositions(Schema input) throws FrontendException {
+		if ( input == null || input.size() == 0 )
+			throw new FrontendException("No input schema to bind fields by name: " + Arrays.toString(fieldNames));
+		Schema.FieldSchema bagSchema = input.getField(0);
+		if ( bagSchema.type != DataType.BAG || bagSchema.schema == null )
+			throw new FrontendException(String.format("Expected a BAG of records as input, but instead found %s",
+					DataType.findTypeName(bagSchema.type)));
+		Schema recordSchema = bagSchema.schema;
+		if ( recordSchema.size() == 1 && recordSchema.getField(0).type == DataType.TUPLE )
+			recordSchema = recordSchema.getField(0).schema;
+		if ( recordSchema == null )
+			throw new FrontendException("Expected the records of the input bag to be declared with field names");
+		StringBuilder result = new StringBuilder();
+		for ( int i = 0; i < fieldNames.length; i++ ){
+			int position = recordSchema.getPosition(fieldNames[i]);
+			if ( position < 0 && i != LABEL )
+				throw new FrontendException("Field not found in the input: " + fieldNames[i]);
+			if ( i > 0 )
+				result.append(',');
+			result.append(position);
+		}
+		return result.toString();
+	}
+
 	@Override
-	public DataBag exec(Tuple b) throws IOException {
+	public DataBag getValue() {
+		logger.debug("***** Activity original volume: " + seen);
+		try {
+			commitByQuantile();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		this.outputBag.add(measures());
+		return outputBag;
+	}
+
+	/**
+	 * Measure one activity.
+	 * @param entities The HTTP records of the activity.
+	 * @param offset The position of the first HTTP record field in each tuple.
+	 * @param withLabel If the records carry the activity label; otherwise, the label is left null
+	 * unless the activity is interrupted.
+	 * @return A tuple of measures as the elements of the output bag.
+	 * @throws IOException
+	 */
+	Tuple measure(Iterable<Tuple> entities, int offset, boolean withLabel) throws IOException {
 		cleanup();
-		DataBag entityBag = (DataBag) b.get(0);
-		logger.debug("***** Activity original volume: " + entityBag.size());
-		activityVol = (int) Math.round(entityBag.size()*portion);
-		long counter = activityVol;
-		for ( Tuple t :  entityBag ){
-			if ( counter <= 0 )
-				break;
-			counter--;
-			String ap = (String) t.get(1);
-			Double srcRttAvg = (Double) t.get(13);
-			Double dstRttAvg = (Double) t.get(14);
-			Double srcRttStd = (Double) t.get(15);
-			Double dstRttStd = (Double) t.get(16);
-			Double reqTime = (Double) t.get(30);
-			Double rspTime = (Double) t.get(33);
-			Double rspDur = (Double) t.get(34);
-			Long reqPl = (Long) t.get(36);
-			Long rspPl = (Long) t.get(37);
-			String reqUrl = (String) t.get(39);
-			String reqHost = (String) t.get(41);
-			String reqRef = (String) t.get(43);
-			String rspCT = (String) t.get(46);
-			Boolean itrr = (Boolean) t.get(50);
-			String label = (String) t.get(51);
-			
-			if ( reqTime == null || rspTime == null || rspDur == null ){
-				String msg = "*****Please make sure the fileds [reqTime, rspTime, rspDur] have no null value.";
-				logger.error(msg);
-				throw new IOException(msg);
-			}
-			
-			if ( reqHost != null )
-				hostSet.add(reqHost);
-			if ( activityAddress == null){
-				if ( hasProtoPrefix(reqUrl))
-					activityAddress = reqUrl;
-				else
-					activityAddress = reqHost+reqUrl;
-				if ( rspCT != null && reqRef != null && !rspCT.contains("text"))
-					activityAddress = reqRef;
-			}
-			if ( itrr != null && itrr == true){
-				activityLabel = "itrr";
-			} else {
-				activityLabel = label;
-			}
-			if ( apName == null)
-				apName = ap;
-			
-			if ( activityStart == null){
-				activityStart = reqTime;
-				activityEnd = rspTime+rspDur;
-			} else {
-				if ( reqTime < activityStart )
-					activityStart = reqTime;
-				if ( rspTime+rspDur > activityEnd )
-					activityEnd = rspTime+rspDur;
+		this.offset = offset;
+		this.withLabel = withLabel;
+		for ( Tuple t : entities )
+			offer(t);
+		commitByQuantile();
+		return measures();
+	}
+
+	/**
+	 * Take an entity in. The first round(portion * n) of n entities are measured, so an entity is
+	 * measured as soon as it is within the portion of those seen so far.
+	 * @param t
+	 * @throws IOException
+	 */
+	private void offer(Tuple t) throws IOException {
+		seen++;
+		pending.add(read(t));
+		if ( byQuantile )
+			return;
+		long measured = Math.round(seen*portion);
+		while ( activityVol < measured && ! pending.isEmpty() ){
+			add(pending.poll());
+			activityVol++;
+		}
+	}
+
+	/**
+	 * Measure the round(portion * n) of n entities that end first, in bag order. The threshold is
+	 * selected in linear time; of entities ending at the threshold, the first in bag order are measured.
+	 * @throws IOException
+	 */
+	private void commitByQuantile() throws IOException {
+		if ( ! byQuantile || pending.isEmpty() )
+			return;
+		int n = pending.size();
+		long measured = Math.round(n*portion);
+		if ( measured > 0 ){
+			double[] ends = new double[n];
+			int i = 0;
+			for ( Request r : pending )
+				ends[i++] = r.end();
+			double threshold = RunningStats.select(Arrays.copyOf(ends, n), n, (int) measured - 1);
+			long ties = measured;
+			for ( i = 0; i < n; i++ )
+				if ( ends[i] < threshold )
+					ties--;
+			i = 0;
+			for ( Request r : pending ){
+				double end = ends[i++];
+				if ( end < threshold || (end == threshold && ties-- > 0) ){
+					add(r);
+					activityVol++;
+				}
 			}
-			// Size
-			long tsize = 0;
-			if (reqPl != null && rspPl !=  null )
-				tsize = reqPl + rspPl;
-			activitySize += tsize;
-			double entityDuration = rspTime-reqTime+rspDur;
-			if ( entityDuration > 0)
-				entityDataRates.add(tsize/entityDuration);
-			// Time
-			if ( srcRttAvg != null )
-				this.flowSrcLat.add(srcRttAvg);
-			if ( dstRttAvg != null )
-				this.flowDstLat.add(dstRttAvg);
-			if ( srcRttStd != null )
-				this.flowSrcJitter.add(srcRttStd);
-			if ( dstRttStd != null )
-				this.flowDstJitter.add(dstRttStd);
 		}
-		// Prepare output
+		pending.clear();
+		strings.clear();
+	}
+
+	private IOException nullTimes(){
+		String msg = "*****Please make sure the fileds [reqTime, rspTime, rspDur] have no null value.";
+		logger.error(msg);
+		return new IOException(msg);
+	}
+
+	/**
+	 * Read the fields measured of an HTTP record.
+	 * @throws IOException If trimmed by quantile and the times are null, as the end time is needed to select.
+	 */
+	private Request read(Tuple t) throws IOException {
+		Request r = new Request();
+		r.reqTime = valueOf((Double) t.get(offset+positions[REQ_TIME]));
+		r.rspTime = valueOf((Double) t.get(offset+positions[RSP_TIME]));
+		r.rspDur = valueOf((Double) t.get(offset+positions[RSP_DUR]));
+		if ( byQuantile && r.hasNullTimes() )
+			throw nullTimes();
+		r.srcRttAvg = valueOf((Double) t.get(offset+positions[SRC_RTT_AVG]));
+		r.dstRttAvg = valueOf((Double) t.get(offset+positions[DST_RTT_AVG]));
+		r.srcRttStd = valueOf((Double) t.get(offset+positions[SRC_RTT_STD]));
+		r.dstRttStd = valueOf((Double) t.get(offset+positions[DST_RTT_STD]));
+		Long reqPl = (Long) t.get(offset+positions[REQ_PL]);
+		Long rspPl = (Long) t.get(offset+positions[RSP_PL]);
+		if (reqPl != null && rspPl !=  null )
+			r.size = reqPl + rspPl;
+		Boolean itrr = (Boolean) t.get(offset+positions[ITRR]);
+		r.itrr = itrr != null && itrr == true;
+		r.ap = share((String) t.get(offset+positions[AP]));
+		r.reqUrl = share((String) t.get(offset+positions[REQ_URL]));
+		r.reqHost = share((String) t.get(offset+positions[REQ_HOST]));
+		r.reqRef = share((String) t.get(offset+positions[REQ_REF]));
+		r.rspCT = share((String) t.get(offset+positions[RSP_CT]));
+		r.label = withLabel ? share((String) t.get(offset+positions[LABEL])) : null;
+		return r;
+	}
+
+	private static double valueOf(Double value){
+		return value == null ? Double.NaN : value;
+	}
+
+	/**
+	 * The equal string already held by the buffered entities of the activity, if trimmed by quantile.
+	 * The hosts, content types and labels mostly repeat within an activity.
+	 */
+	private String share(String value){
+		if ( ! byQuantile || value == null )
+			return value;
+		String held = strings.get(value);
+		if ( held != null )
+			return held;
+		strings.put(value, value);
+		return value;
+	}
+
+	private void add(Request r) throws IOException {
+		if ( r.hasNullTimes() )
+			throw nullTimes();
+
+		if ( r.reqHost != null )
+			hostSet.add(r.reqHost);
+		if ( activityAddress == null){
+			if ( hasProtoPrefix(r.reqUrl))
+				activityAddress = r.reqUrl;
+			else
+				activityAddress = r.reqHost+r.reqUrl;
+			if ( r.rspCT != null && r.reqRef != null && !r.rspCT.contains("text"))
+				activityAddress = r.reqRef;
+		}
+		if ( r.itrr ){
+			activityLabel = "itrr";
+		} else {
+			activityLabel = r.label;
+		}
+		if ( apName == null)
+			apName = r.ap;
+
+		if ( activityStart == null){
+			activityStart = r.reqTime;
+			activityEnd = r.end();
+		} else {
+			if ( r.reqTime < activityStart )
+				activityStart = r.reqTime;
+			if ( r.end() > activityEnd )
+				activityEnd = r.end();
+		}
+		// Size
+		activitySize += r.size;
+		double entityDuration = r.rspTime-r.reqTime+r.rspDur;
+		if ( entityDuration > 0)
+			stats[ENTITY_RATE].add(r.size/entityDuration);
+		// Time
+		if ( ! Double.isNaN(r.srcRttAvg) )
+			stats[SRC_LAT].add(r.srcRttAvg);
+		if ( ! Double.isNaN(r.dstRttAvg) )
+			stats[DST_LAT].add(r.dstRttAvg);
+		if ( ! Double.isNaN(r.srcRttStd) )
+			stats[SRC_JITTER].add(r.srcRttStd);
+		if ( ! Double.isNaN(r.dstRttStd) )
+			stats[DST_JITTER].add(r.dstRttStd);
+	}
+
+	/**
+	 * The fields of an HTTP record measured, held instead of the record while it is pending.
+	 */
+	private static class Request {
+		String ap, reqUrl, reqHost, reqRef, rspCT, label;
+		double srcRttAvg, dstRttAvg, srcRttStd, dstRttStd; // NaN if null
+		double reqTime, rspTime, rspDur; // NaN if null
+		long size; // request and response payloads, 0 if either is null
+		boolean itrr;
+
+		double end(){
+			return rspTime+rspDur;
+		}
+
+		boolean hasNullTimes(){
+			return Double.isNaN(reqTime) || Double.isNaN(rspTime) || Double.isNaN(rspDur);
+		}
+	}
+
+	/**
+	 * Prepare output of the entities measured so far.
+	 */
+	private Tuple measures(){
 		Tuple newT = TupleFactory.getInstance().newTuple();
 		newT.append(activityStart); //start time
 		newT.append(activityVol); // entity count
 		newT.append(activitySize); // size
-		double dur = activityEnd-activityStart;
+		Double dur = activityStart == null ? null : activityEnd-activityStart;
 		newT.append(dur); // duration
 		double dr = 0;
-		if ( dur > 0 )
+		if ( dur != null && dur > 0 )
 			dr = activitySize/dur;
 		newT.append(dr); // activitiy data rate
 		newT.append(apName);
 		newT.append(activityLabel);
-		newT.append(mean(flowSrcLat)); // latency
-		newT.append(mean(flowDstLat));
-		newT.append(mean(flowSrcJitter)); //jitter
-		newT.append(mean(flowDstJitter));
-		newT.append(mean(entityDataRates)); // entitiy data rate
+		newT.append(stats[SRC_LAT].getMean()); // latency
+		newT.append(stats[DST_LAT].getMean());
+		newT.append(stats[SRC_JITTER].getMean()); //jitter
+		newT.append(stats[DST_JITTER].getMean());
+		newT.append(stats[ENTITY_RATE].getMean()); // entitiy data rate
 		newT.append(catStrings(hostSet, ";"));
 		newT.append(activityAddress);
-		this.outputBag.add(newT);
-		return outputBag;
-	}
-
-	private double mean(List<Double> vals){
-		double tot = 0;
-		int n = 0;
-		for ( Double val : vals){
-			tot += val;
-			n += 1;
+		if ( withSummaries ){
+			for ( RunningStats s : stats ){
+				newT.append(s.getVariance());
+				newT.append(s.getMin());
+				newT.append(s.getMax());
+			}
+		}
+		for ( RunningStats s : stats ){
+			for ( double p : percentiles )
+				newT.append(s.getPercentile(p));
 		}
-		return tot/n;
+		return newT;
 	}
-	
+
+	/**
+	 * Check if the URI starts with a protocol, as the regex "^(\w+:?//).*" does.
+	 */
 	private boolean hasProtoPrefix(String uri){
-		if ( uri != null && uri.matches("^(\\w+:?//).*")){
-			return true;
-		}
-		return false;
+		if ( uri == null )
+			return false;
+		int i = 0;
+		while ( i < uri.length() && isWordChar(uri.charAt(i)) )
+			i++;
+		if ( i == 0 )
+			return false;
+		if ( i < uri.length() && uri.charAt(i) == ':' )
+			i++;
+		return uri.startsWith("//", i);
 	}
-	
-	private String catStrings(Collection<String> vals, String sep){
-		String res = "";
+
+	private static boolean isWordChar(char c){
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+	}
+
+	private String catStrings(Set<String> vals, String sep){
+		StringBuilder res = new StringBuilder();
 		for ( String val : vals){
-			if ( res.length() == 0)
-				res += val;
-			else {
-				res += sep;
-				res += val;
+			if ( res.length() > 0 )
+				res.append(sep);
+			res.append(val);
+		}
+		return res.toString();
+	}
+
+	/**
+	 * Bind the fields of the narrow input by name, and declare the output.
+	 * The wide mode declares no output schema, as scripts of the fixed positions expect.
+	 */
+	@Override
+	public Schema outputSchema(Schema input){
+		if ( fieldNames == null )
+			return super.outputSchema(input);
+		try {
+			getProperties().setProperty(POSITIONS_PROPERTY, findPositions(input));
+			Schema outputTupleSchema = new Schema();
+			outputTupleSchema.add(new Schema.FieldSchema("start", DataType.DOUBLE));
+			outputTupleSchema.add(new Schema.FieldSchema("volume", DataType.LONG));
+			outputTupleSchema.add(new Schema.FieldSchema("size", DataType.LONG));
+			outputTupleSchema.add(new Schema.FieldSchema("duration", DataType.DOUBLE));
+			outputTupleSchema.add(new Schema.FieldSchema("rate", DataType.DOUBLE));
+			outputTupleSchema.add(new Schema.FieldSchema("ap", DataType.CHARARRAY));
+			outputTupleSchema.add(new Schema.FieldSchema("label", DataType.CHARARRAY));
+			String[] series = new String[]{"src_latency", "dst_latency", "src_jitter", "dst_jitter", "entity_rate"};
+			for ( String name : series )
+				outputTupleSchema.add(new Schema.FieldSchema(name, DataType.DOUBLE));
+			outputTupleSchema.add(new Schema.FieldSchema("hosts", DataType.CHARARRAY));
+			outputTupleSchema.add(new Schema.FieldSchema("address", DataType.CHARARRAY));
+			if ( withSummaries ){
+				for ( String name : series ){
+					outputTupleSchema.add(new Schema.FieldSchema(name + "_var", DataType.DOUBLE));
+					outputTupleSchema.add(new Schema.FieldSchema(name + "_min", DataType.DOUBLE));
+					outputTupleSchema.add(new Schema.FieldSchema(name + "_max", DataType.DOUBLE));
+				}
+			}
+			for ( String name : series ){
+				for ( double p : percentiles )
+					outputTupleSchema.add(new Schema.FieldSchema(name + "_p" + (p == Math.floor(p) ? String.valueOf((long) p)
+							: String.valueOf(p).replace('.', '_')), DataType.DOUBLE));
 			}
+			return new Schema(new Schema.FieldSchema(getSchemaName(this.getClass().getName().toLowerCase(), input),
+	                                           outputTupleSchema,
+	                                           DataType.BAG));
+		}catch (FrontendException e) {
+			throw new RuntimeException(e);
 		}
-		return res;
 	}
 }
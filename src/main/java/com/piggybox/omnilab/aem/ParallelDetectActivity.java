@@ -0,0 +1,130 @@
+package com.piggybox.omnilab.aem;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.pig.EvalFunc;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+
+/**
+ * Run the AID algorithm of Activity-Entity Model for many users at once on a pool of threads.
+ * Input: a bag of tuples (HttpRequestStartTime, HttpRequestEndTime, URL, Referrer, ContentType, ID ..)
+ * mixing several users, with a user key at a given field. Records of the same user should be kept in
+ * ascending order of start time, e.g. by grouping on a user bucket and sorting by (user, start time).
+ * Return: a bag of tuples as DetectActivity does, users being concatenated in order of first appearance.
+ *
+ * Each user is detected by an independent AEM model, so the result equals running DetectActivity per user.
+ *
+ * @author chenxm
+ *
+ */
+public class ParallelDetectActivity extends EvalFunc<DataBag>{
+	private int keyIndex;
+	private String timeSpec;
+	private int threads;
+	private ExecutorService executor = null;
+
+	public ParallelDetectActivity(String keyIndex){
+		this(keyIndex, "2s");
+	}
+
+	public ParallelDetectActivity(String keyIndex, String timeSpec){
+		this(keyIndex, timeSpec, String.valueOf(Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * @param keyIndex The field index of user key in input tuples.
+	 * @param timeSpec The user reading time, e.g. "2s".
+	 * @param threads The number of worker threads.
+	 */
+	public ParallelDetectActivity(String keyIndex, String timeSpec, String threads){
+		this.keyIndex = Integer.parseInt(keyIndex);
+		this.timeSpec = timeSpec;
+		this.threads = Math.max(1, Integer.parseInt(threads));
+	}
+
+	@Override
+	public DataBag exec(Tuple b) throws ExecException {
+		DataBag outputBag = BagFactory.getInstance().newDefaultBag();
+		if ( b == null || b.size() == 0 || b.get(0) == null )
+			return outputBag;
+		// Split records by user, keeping their relative order.
+		Map<Object, DataBag> userBags = new LinkedHashMap<Object, DataBag>();
+		for ( Tuple t : (DataBag) b.get(0) ){
+			Object key = t.get(keyIndex);
+			DataBag userBag = userBags.get(key);
+			if ( userBag == null ){
+				userBag = BagFactory.getInstance().newDefaultBag();
+				userBags.put(key, userBag);
+			}
+			userBag.add(t);
+		}
+		List<Future<DataBag>> results = new ArrayList<Future<DataBag>>(userBags.size());
+		for ( final DataBag userBag : userBags.values() ){
+			results.add(getExecutor().submit(new Callable<DataBag>(){
+				@Override
+				public DataBag call() throws Exception {
+					// A fresh UDF, hence a fresh AEM model, for each user.
+					DetectActivity detector = new DetectActivity(timeSpec);
+					return detector.exec(TupleFactory.getInstance().newTuple(userBag));
+				}
+			}));
+		}
+		try {
+			for ( Future<DataBag> result : results ){
+				outputBag.addAll(result.get());
+				if ( reporter != null )
+					reporter.progress();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ExecException("Interrupted while detecting activities: " + e);
+		} catch (ExecutionException e) {
+			throw new ExecException("Failed to detect activities: " + e.getCause(), e.getCause());
+		}
+		return outputBag;
+	}
+
+	private synchronized ExecutorService getExecutor(){
+		if ( executor == null ){
+			executor = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "aem-worker");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	@Override
+	public void finish(){
+		if ( executor != null ){
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	/**
+	 * The output schema is the same as DetectActivity.
+	 */
+	@Override
+	public Schema outputSchema(Schema input){
+		return new DetectActivity(timeSpec).outputSchema(input);
+	}
+}
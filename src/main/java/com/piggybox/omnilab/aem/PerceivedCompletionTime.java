@@ -1,7 +1,10 @@
 package com.piggybox.omnilab.aem;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
 
+import org.apache.pig.Accumulator;
 import org.apache.pig.data.DataBag;
 import org.apache.pig.data.Tuple;
 
@@ -11,19 +14,50 @@ import com.piggybox.utils.SimpleEvalFunc;
  * Given a bag of (STime, ETime) pairs, the perceived duration is calculated.
  * I.e., D = max(ETime)-min{STime}.
  * This routine is involved in AEM model to calculate the activity completion time and session length.
+ *
+ * It is an Accumulator but not Algebraic: with a portion below 1.0 the pairs involved depend on all
+ * the others, which no map-side partial state summarizes. For the whole activity, i.e. a portion of 1.0,
+ * FullCompletionTime gives the same result and is combined map-side.
+ *
+ * By default, the portion keeps the first pairs in bag order. Trimmed by quantile, e.g.
+ * PerceivedCompletionTime('0.95', 'quantile'), it keeps the valid pairs of the smallest ETime
+ * instead, i.e., the slowest entities are dropped whatever the bag order.
  * @author chenxm
  *
  */
-public class PerceivedCompletionTime extends SimpleEvalFunc<Double>{
+public class PerceivedCompletionTime extends SimpleEvalFunc<Double> implements Accumulator<Double>{
+	public static final String TRIM_BY_ORDER = "order";
+	public static final String TRIM_BY_QUANTILE = "quantile";
 	private double portion = 1.0;
+	private boolean byQuantile = false;
 	private Double activityStart = null; // activity start time
 	private Double activityEnd = null;
-	private long activityVol = 0;
-	
+	private long activityVol = 0; // pairs seen
+	private long measuredVol = 0; // pairs involved, i.e., round(activityVol*portion)
+	private LinkedList<Tuple> pending = new LinkedList<Tuple>(); // seen but not yet involved
+	private double[] starts = new double[0]; // valid pairs buffered to be trimmed by quantile
+	private double[] ends = new double[0];
+	private int size = 0;
+
 	public PerceivedCompletionTime(){
 		this(0.95);
 	}
-	
+
+	public PerceivedCompletionTime(String portion){
+		this(portion, TRIM_BY_ORDER);
+	}
+
+	/**
+	 * @param trim "order" to keep the first pairs in bag order, or "quantile" to keep those of the smallest ETime.
+	 */
+	public PerceivedCompletionTime(String portion, String trim){
+		this(Double.parseDouble(portion));
+		if ( TRIM_BY_QUANTILE.equals(trim) )
+			this.byQuantile = true;
+		else if ( ! TRIM_BY_ORDER.equals(trim) )
+			throw new IllegalArgumentException("Unknown trim: " + trim);
+	}
+
 	/**
 	 * Compute the overall completion time of whole activity.
 	 * From the start of the first entity to the end of the last one.
@@ -32,51 +66,104 @@ public class PerceivedCompletionTime extends SimpleEvalFunc<Double>{
 	public PerceivedCompletionTime(double portion){
 		this.portion = portion;
 	}
-	
+
 	/**
 	 * The variables MUST be reset for a new input tuple.
 	 */
-	private void cleanup(){ 
+	@Override
+	public void cleanup(){
 		activityStart = null;
 		activityEnd = null;
 		activityVol = 0;
+		measuredVol = 0;
+		pending.clear();
+		size = 0;
 	}
-	
+
 	public Double call(DataBag b) throws IOException {
 		cleanup();
-		Double result;
-		DataBag entityBag = b;
-		activityVol = entityBag.size();
+		for ( Tuple t : b )
+			offer(t);
+		Double result = getValue();
+		cleanup();
+		return result;
+	}
+
+	@Override
+	public void accumulate(Tuple b) throws IOException {
+		DataBag entityBag = (DataBag) b.get(0);
+		if ( entityBag == null )
+			return;
+		for ( Tuple t : entityBag )
+			offer(t);
+	}
+
+	@Override
+	public Double getValue() {
+		if ( byQuantile )
+			return trimByQuantile();
+		if ( activityStart == null )
+			return null;
+		return activityEnd - activityStart;
+	}
+
+	/**
+	 * Involve the round(n*portion) of n valid pairs with the smallest ETime,
+	 * found by selection; of pairs ending at the threshold, the first in bag order are taken.
+	 */
+	private Double trimByQuantile(){
+		int k = (int) Math.round(size*portion);
+		if ( k <= 0 )
+			return null;
+		double threshold = RunningStats.select(Arrays.copyOf(ends, size), size, k-1);
+		int ties = k;
+		for ( int i = 0; i < size; i++ )
+			if ( ends[i] < threshold )
+				ties--;
+		double start = Double.POSITIVE_INFINITY;
+		for ( int i = 0; i < size; i++ ){
+			if ( ends[i] < threshold || (ends[i] == threshold && ties-- > 0) )
+				start = Math.min(start, starts[i]);
+		}
+		return threshold - start;
+	}
+
+	/**
+	 * The first round(n*portion) of n pairs are involved, which is
+	 * nondecreasing in n: a pair waits until the count seen so far admits it.
+	 */
+	private void offer(Tuple t) throws IOException {
+		if ( byQuantile ){
+			buffer((Double) t.get(0), (Double) t.get(1));
+			return;
+		}
+		activityVol++;
+		pending.add(t);
 		long actualNumber = Math.round(activityVol*portion);
-		for ( Tuple t :  entityBag ){
-			//System.out.println("**********" + actualNumber);
-			if ( actualNumber <= 0 )
-				break;
-			actualNumber--;
-			
-			Double eStartTime = (Double) t.get(0);
-			Double eEndTime = (Double) t.get(1);
-			
-			if ( eStartTime == null || eEndTime == null){
-				continue; // Skip invalid tuples
-			}
-
-			if ( activityStart == null){
-				activityStart = eStartTime;
-				activityEnd = eEndTime;
-				continue;
-			}
-			if ( eStartTime < activityStart )
-				activityStart = eStartTime;
-			if ( eEndTime > activityEnd)
-				activityEnd = eEndTime;
+		while ( measuredVol < actualNumber && ! pending.isEmpty() ){
+			Tuple p = pending.poll();
+			measuredVol++;
+			add((Double) p.get(0), (Double) p.get(1));
 		}
-		
-		try{
-			result = activityEnd-activityStart;
-		} catch (Exception e){
-			result = null;
+	}
+
+	private void buffer(Double eStartTime, Double eEndTime){
+		if ( eStartTime == null || eEndTime == null)
+			return; // Skip invalid tuples
+		if ( size == ends.length ){
+			starts = Arrays.copyOf(starts, Math.max(16, size * 2));
+			ends = Arrays.copyOf(ends, starts.length);
 		}
-		return result;
+		starts[size] = eStartTime;
+		ends[size++] = eEndTime;
+	}
+
+	private void add(Double eStartTime, Double eEndTime){
+		if ( eStartTime == null || eEndTime == null)
+			return; // Skip invalid tuples
+		if ( activityStart == null || eStartTime < activityStart )
+			activityStart = eStartTime;
+		if ( activityEnd == null || eEndTime > activityEnd )
+			activityEnd = eEndTime;
 	}
 }
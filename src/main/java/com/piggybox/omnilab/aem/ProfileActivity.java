@@ -0,0 +1,214 @@
+package com.piggybox.omnilab.aem;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.pig.AccumulatorEvalFunc;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+
+/**
+ * Detect, label and measure the activities of a user in one pass, which otherwise takes
+ * DetectActivity, LabelActivity and MeasureActivity with a grouping before each.
+ * Input: a bag of tuples (HttpRequestStartTime, HttpRequestEndTime, URL, Referrer, ContentType, ID, ..)
+ * in ascending order of start time, followed by the fields of the HTTP record read by MeasureActivity,
+ * e.g. FOREACH logs GENERATE start, end, url, ref, type, id, *; and an optional user key as DetectActivity.
+ * Return: a bag of tuples (activity_id, label) followed by the measures of MeasureActivity.
+ *
+ * Activities are labeled in order of their first requests, as LabelActivity does, and measured over their
+ * entities in order of start time. Only the measures of closed activities are kept, not their entities.
+ *
+ * @author chenxm
+ *
+ */
+public class ProfileActivity extends AccumulatorEvalFunc<DataBag>{
+	private static final int RECORD_OFFSET = 6; // the position of the first HTTP record field
+	private double readingTime;
+	private double horizon;
+	private ActivityIdGenerator idGenerator; // resolved once, shared by the models of all users
+	private boolean longIds;
+	private AEM aemModel = null;
+	private MeasureActivity measurer;
+	private List<Profile> profiles = null;
+	private long rows = 0;
+
+	public ProfileActivity(){
+		this("2s");
+	}
+
+	public ProfileActivity(String timeSpec){
+		this(timeSpec, "0s");
+	}
+
+	public ProfileActivity(String timeSpec, String horizonSpec){
+		this(timeSpec, horizonSpec, ActivityIds.UUID_IDS);
+	}
+
+	public ProfileActivity(String timeSpec, String horizonSpec, String idStrategy){
+		this(timeSpec, horizonSpec, idStrategy, "0.95");
+	}
+
+	/**
+	 * @param timeSpec The user reading time, e.g. "2s".
+	 * @param horizonSpec The watermark horizon to close idle activities, e.g. "30s"; "0s" to disable.
+	 * @param idStrategy One of "uuid", "seq", "hash" and "hashlong", or the class name of an ActivityIdGenerator.
+	 * @param portion The portion of entities to measure an activity, as MeasureActivity.
+	 */
+	public ProfileActivity(String timeSpec, String horizonSpec, String idStrategy, String portion){
+		this.readingTime = DetectActivity.parseSeconds(timeSpec);
+		this.horizon = DetectActivity.parseSeconds(horizonSpec);
+		this.idGenerator = ActivityIds.forName(idStrategy);
+		this.longIds = idGenerator.isLong();
+		this.measurer = new MeasureActivity(Double.parseDouble(portion));
+		cleanup();
+	}
+
+	@Override
+	public void accumulate(Tuple b) throws IOException {
+		if ( b.size() > 1 && b.get(1) != null )
+			aemModel.setUserKey(b.get(1).toString());
+		for ( Tuple t : (DataBag) b.get(0) ){
+			Entity entity = aemModel.createEntity((Double)t.get(0),
+					(Double)t.get(1),
+					(String)t.get(2),
+					(String)t.get(3),
+					(String)t.get(4),
+					(String)t.get(5),
+					t);
+			entity.ordinal = rows++;
+			if ( horizon > 0 )
+				closeActivities(aemModel.closeActivitiesBefore(entity.start - horizon));
+			int actCnt;
+			if ( aemModel.addEntityToModel(entity) && (actCnt = aemModel.size()) > 0 ){
+				// leave the last activity to add new entities.
+				closeActivities(aemModel.getActivities(0, actCnt-1));
+				aemModel.removeActivities(0, actCnt-1);
+			}
+		}
+	}
+
+	@Override
+	public void cleanup() {
+		this.aemModel = new AEM(readingTime, null);
+		this.aemModel.setIdGenerator(idGenerator);
+		this.profiles = new ArrayList<Profile>();
+		this.rows = 0;
+	}
+
+	@Override
+	public DataBag getValue() {
+		DataBag outputBag = BagFactory.getInstance().newDefaultBag();
+		try {
+			closeActivities(aemModel.getActivities(0, aemModel.size()));
+			aemModel.removeActivities(0, aemModel.size());
+			Collections.sort(profiles, BY_FIRST_REQUEST);
+			RevisitLabeler labeler = new RevisitLabeler();
+			for ( Profile p : profiles ){
+				String label = labeler.label(p.firstUrl);
+				Tuple newT = TupleFactory.getInstance().newTuple();
+				newT.append(p.activityId);
+				newT.append(label);
+				if ( p.measures.get(6) == null )
+					p.measures.set(6, label); // not interrupted
+				for ( Object field : p.measures.getAll() )
+					newT.append(field);
+				outputBag.add(newT);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return outputBag;
+	}
+
+	/**
+	 * Measure given activities and keep their profiles. It is up to the caller to remove them from the model.
+	 * @param activities
+	 * @throws IOException
+	 */
+	private void closeActivities(List<Activity> activities) throws IOException{
+		for ( Activity act : activities ){
+			List<Entity> entities = act.getAllEntities();
+			if ( entities.isEmpty() )
+				continue;
+			Collections.sort(entities, BY_START);
+			List<Tuple> records = new ArrayList<Tuple>(entities.size());
+			for ( Entity e : entities )
+				records.add((Tuple) e.getPayload());
+			Entity first = entities.get(0);
+			Profile p = new Profile();
+			p.start = first.start;
+			p.ordinal = first.ordinal;
+			p.activityId = aemModel.getActivityID(act);
+			p.firstUrl = aemModel.getUrl(first.urlId);
+			p.measures = measurer.measure(records, RECORD_OFFSET, false);
+			profiles.add(p);
+		}
+	}
+
+	private static final Comparator<Entity> BY_START = new Comparator<Entity>(){
+		@Override
+		public int compare(Entity e1, Entity e2) {
+			int c = Double.compare(e1.start, e2.start);
+			return c != 0 ? c : Long.compare(e1.ordinal, e2.ordinal);
+		}
+	};
+
+	private static final Comparator<Profile> BY_FIRST_REQUEST = new Comparator<Profile>(){
+		@Override
+		public int compare(Profile p1, Profile p2) {
+			int c = Double.compare(p1.start, p2.start);
+			return c != 0 ? c : Long.compare(p1.ordinal, p2.ordinal);
+		}
+	};
+
+	/**
+	 * What is left of a closed activity to label it.
+	 */
+	private static class Profile {
+		double start; // start time of the first request
+		long ordinal; // input position of the first request
+		Object activityId;
+		String firstUrl;
+		Tuple measures;
+	}
+
+	@Override
+	public Schema outputSchema(Schema input){
+		try {
+			Schema.FieldSchema inputFieldSchema = input.getField(0);
+			if (inputFieldSchema.type != DataType.BAG){
+				throw new RuntimeException("Expected a BAG as input");
+			}
+			Schema outputTupleSchema = new Schema();
+			outputTupleSchema.add(new Schema.FieldSchema("activity_id", longIds ? DataType.LONG : DataType.CHARARRAY));
+			outputTupleSchema.add(new Schema.FieldSchema("label", DataType.CHARARRAY));
+			outputTupleSchema.add(new Schema.FieldSchema("start", DataType.DOUBLE));
+			outputTupleSchema.add(new Schema.FieldSchema("volume", DataType.LONG));
+			outputTupleSchema.add(new Schema.FieldSchema("size", DataType.LONG));
+			outputTupleSchema.add(new Schema.FieldSchema("duration", DataType.DOUBLE));
+			outputTupleSchema.add(new Schema.FieldSchema("rate", DataType.DOUBLE));
+			outputTupleSchema.add(new Schema.FieldSchema("ap", DataType.CHARARRAY));
+			outputTupleSchema.add(new Schema.FieldSchema("measure_label", DataType.CHARARRAY));
+			outputTupleSchema.add(new Schema.FieldSchema("src_latency", DataType.DOUBLE));
+			outputTupleSchema.add(new Schema.FieldSchema("dst_latency", DataType.DOUBLE));
+			outputTupleSchema.add(new Schema.FieldSchema("src_jitter", DataType.DOUBLE));
+			outputTupleSchema.add(new Schema.FieldSchema("dst_jitter", DataType.DOUBLE));
+			outputTupleSchema.add(new Schema.FieldSchema("entity_rate", DataType.DOUBLE));
+			outputTupleSchema.add(new Schema.FieldSchema("hosts", DataType.CHARARRAY));
+			outputTupleSchema.add(new Schema.FieldSchema("address", DataType.CHARARRAY));
+			return new Schema(new Schema.FieldSchema(getSchemaName(this.getClass().getName().toLowerCase(), input),
+	                                           outputTupleSchema,
+	                                           DataType.BAG));
+		}catch (FrontendException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package com.piggybox.omnilab.aem;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Label activities in order of their first requests as one of "start", "forward", "backward" and "refresh",
+ * by looking for the same first URL among the past 200 activities.
+ * The first URLs of the past activities are kept in a ring buffer and hashed to their last positions,
+ * so that each activity is labeled in constant time.
+ * @author chenxm
+ */
+class RevisitLabeler {
+    static final int LOOKBACK = 200; // the number of past activities to look back
+
+    private String[] ring = new String[LOOKBACK]; // first URLs of the past activities, by position modulo LOOKBACK
+    private Map<String, Long> lastPositions = new HashMap<String, Long>(); // first URL: last position in the lookback
+    private long position = 0; // the position of the next activity
+
+    /**
+     * Label the next activity.
+     * @param firstUrl The URL of the first request of the activity.
+     * @return
+     */
+    public String label(String firstUrl){
+        String lab = "forward";
+        Long last = lastPositions.get(firstUrl);
+        if ( position == 0 ){
+            lab = "start";
+        } else if ( last != null ){
+            if ( position - last == 1 )
+                lab = "refresh";
+            else
+                lab = "backward";
+        }
+        // The activity LOOKBACK positions ago leaves the lookback of the next activity.
+        int slot = (int) (position % LOOKBACK);
+        String old = ring[slot];
+        if ( old != null ){
+            Long oldLast = lastPositions.get(old);
+            if ( oldLast != null && oldLast == position - LOOKBACK )
+                lastPositions.remove(old);
+        }
+        ring[slot] = firstUrl;
+        lastPositions.put(firstUrl, position);
+        position++;
+        return lab;
+    }
+}
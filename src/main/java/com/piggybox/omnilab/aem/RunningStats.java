@@ -0,0 +1,142 @@
+package com.piggybox.omnilab.aem;
+
+import java.util.Arrays;
+
+/**
+ * Running statistics of a series of doubles, updated in constant time and space per value:
+ * count, mean, population variance (by Welford's method), min and max.
+ * Values are kept in a primitive array only if percentiles are asked for, which are selected in linear time.
+ * @author chenxm
+ */
+class RunningStats {
+    private long count = 0;
+    private double sum = 0;
+    private double mean = 0; // running mean for the variance
+    private double m2 = 0; // sum of squared differences from the mean
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+    private double[] values = null;
+    private int size = 0;
+
+    /**
+     * @param keepValues If values are kept for percentiles.
+     */
+    public RunningStats(boolean keepValues){
+        if ( keepValues )
+            values = new double[16];
+    }
+
+    public void add(double value){
+        count++;
+        sum += value;
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+        if ( count == 1 || value < min )
+            min = value;
+        if ( count == 1 || value > max )
+            max = value;
+        if ( values != null ){
+            if ( size == values.length )
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+    }
+
+    public long getCount(){
+        return count;
+    }
+
+    /**
+     * @return The mean, or NaN if no value is added.
+     */
+    public double getMean(){
+        return sum / count;
+    }
+
+    /**
+     * @return The population variance, or NaN if no value is added.
+     */
+    public double getVariance(){
+        return count == 0 ? Double.NaN : m2 / count;
+    }
+
+    public double getMin(){
+        return min;
+    }
+
+    public double getMax(){
+        return max;
+    }
+
+    /**
+     * Get a percentile by the nearest-rank method. Values must be kept.
+     * @param percent In [0, 100].
+     * @return The percentile, or NaN if no value is added.
+     */
+    public double getPercentile(double percent){
+        if ( values == null )
+            throw new IllegalStateException("Values are not kept for percentiles.");
+        if ( size == 0 )
+            return Double.NaN;
+        int rank = (int) Math.ceil(percent / 100 * size);
+        return select(values, size, Math.min(size, Math.max(1, rank)) - 1);
+    }
+
+    /**
+     * Select the k-th smallest of the first size values in expected linear time,
+     * by quickselect with a median-of-three pivot. The values are reordered in place.
+     * @param values
+     * @param size
+     * @param k 0-based rank in [0, size).
+     * @return The k-th smallest value.
+     */
+    static double select(double[] values, int size, int k){
+        int lo = 0;
+        int hi = size - 1;
+        while ( lo < hi ){
+            int mid = (lo + hi) >>> 1;
+            if ( values[mid] < values[lo] )
+                swap(values, lo, mid);
+            if ( values[hi] < values[lo] )
+                swap(values, lo, hi);
+            if ( values[hi] < values[mid] )
+                swap(values, mid, hi);
+            double pivot = values[mid];
+            int i = lo;
+            int j = hi;
+            while ( i <= j ){
+                while ( values[i] < pivot )
+                    i++;
+                while ( values[j] > pivot )
+                    j--;
+                if ( i <= j )
+                    swap(values, i++, j--);
+            }
+            // [lo, j] <= pivot, (j, i) == pivot, [i, hi] >= pivot
+            if ( k <= j )
+                hi = j;
+            else if ( k >= i )
+                lo = i;
+            else
+                return values[k];
+        }
+        return values[k];
+    }
+
+    private static void swap(double[] values, int i, int j){
+        double v = values[i];
+        values[i] = values[j];
+        values[j] = v;
+    }
+
+    public void clear(){
+        count = 0;
+        sum = 0;
+        mean = 0;
+        m2 = 0;
+        min = Double.NaN;
+        max = Double.NaN;
+        size = 0;
+    }
+}
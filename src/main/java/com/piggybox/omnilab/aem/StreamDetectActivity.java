@@ -0,0 +1,172 @@
+package com.piggybox.omnilab.aem;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.pig.EvalFunc;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+
+/**
+ * A row-at-a-time variant of DetectActivity, to assign activity IDs in a plain FOREACH without GROUP BY.
+ * Input: one request (HttpRequestStartTime, HttpRequestEndTime, URL, Referrer, ContentType, ID, UserKey).
+ * Return: a tuple (entity_id, activity_id) of the activity this row is attached to, e.g.
+ * FOREACH logs GENERATE FLATTEN(StreamDetectActivity(start, end, url, ref, type, id, user));
+ *
+ * The AEM state of each user is kept in a map across rows, and each row is answered as soon as AEM attaches
+ * it to an activity, named by the ID strategy from the root entity of the activity. Nothing is held back for
+ * the end of the task, so the input may be split anywhere. Activities are closed and dropped from the model as
+ * in DetectActivity, by the gaps of AEM and the optional watermark horizon, and a user is dropped when it has
+ * not been seen for the given number of rows, or when the map holds more users than given, in which case the
+ * least recently seen user goes first; a later row of a dropped user starts a new activity.
+ *
+ * Contract on input ordering: the rows of a user must come in ascending order of start time, and be clustered
+ * by user closely enough that no user is dropped before its last row, e.g. files of the collector loaded
+ * without splitting them. Then the output equals DetectActivity('2s', '0s', 'ids') run on each user, but for
+ * the rows of a page that AEM cuts off its referrer after they are attached: they keep the activity they
+ * were attached to, while DetectActivity reports the activity of the cut page.
+ * Rows without start time can not be placed; they are returned with a null activity ID and counted
+ * by AEM:STREAM_UNASSIGNED_ROWS.
+ *
+ * @author chenxm
+ *
+ */
+public class StreamDetectActivity extends EvalFunc<Tuple>{
+	private double readingTime;
+	private double horizon;
+	private ActivityIdGenerator idGenerator; // resolved once, shared by the models of all users
+	private boolean longIds;
+	private int maxUsers;
+	private long idleRows;
+	private UrlDictionary urls = new UrlDictionary();
+	private DomainCache domains = new DomainCache();
+	private LinkedHashMap<String, UserState> users;
+	private long rows = 0;
+
+	public StreamDetectActivity(){
+		this("2s");
+	}
+
+	public StreamDetectActivity(String timeSpec){
+		this(timeSpec, "0s");
+	}
+
+	public StreamDetectActivity(String timeSpec, String horizonSpec){
+		this(timeSpec, horizonSpec, ActivityIds.UUID_IDS);
+	}
+
+	public StreamDetectActivity(String timeSpec, String horizonSpec, String idStrategy){
+		this(timeSpec, horizonSpec, idStrategy, "1000", "100000");
+	}
+
+	/**
+	 * @param timeSpec The user reading time, e.g. "2s".
+	 * @param horizonSpec The watermark horizon to close idle activities, e.g. "30s"; "0s" to disable.
+	 * @param idStrategy One of "uuid", "seq", "hash" and "hashlong", or the class name of an ActivityIdGenerator.
+	 * @param maxUsers The maximum number of users kept in the map, "1000" by default.
+	 * @param idleRows The number of rows after which an unseen user is dropped, "100000" by default.
+	 */
+	public StreamDetectActivity(String timeSpec, String horizonSpec, String idStrategy, String maxUsers, String idleRows){
+		this.readingTime = DetectActivity.parseSeconds(timeSpec);
+		this.horizon = DetectActivity.parseSeconds(horizonSpec);
+		this.idGenerator = ActivityIds.forName(idStrategy);
+		this.longIds = idGenerator.isLong();
+		this.maxUsers = Math.max(1, Integer.parseInt(maxUsers));
+		this.idleRows = Long.parseLong(idleRows);
+		this.users = new LinkedHashMap<String, UserState>(16, 0.75f, true); // in order of access
+	}
+
+	@Override
+	public Tuple exec(Tuple t) throws IOException {
+		rows++;
+		Double start = (Double) t.get(0);
+		String id = (String) t.get(5);
+		if ( start == null ){
+			DetectActivity.incrementCounter("STREAM_UNASSIGNED_ROWS", 1);
+			return output(id, null);
+		}
+		Object key = t.size() > 6 ? t.get(6) : null;
+		String userKey = key == null ? null : key.toString();
+		UserState state = users.get(userKey);
+		if ( state == null ){
+			state = new UserState();
+			state.model = new AEM(readingTime, urls, domains, null);
+			state.model.setIdGenerator(idGenerator);
+			state.model.setUserKey(userKey);
+			users.put(userKey, state);
+		}
+		state.lastRow = rows;
+		AEM model = state.model;
+		Entity entity = model.createEntity(start,
+				(Double)t.get(1),
+				(String)t.get(2),
+				(String)t.get(3),
+				(String)t.get(4),
+				id,
+				null);
+		if ( horizon > 0 )
+			model.closeActivitiesBefore(entity.start - horizon);
+		int actCnt;
+		if ( model.addEntityToModel(entity) && (actCnt = model.size()) > 0 )
+			model.removeActivities(0, actCnt-1); // leave the last activity to add new entities.
+		Tuple result = output(id, model.getActivityID(entity.activity));
+		evictUsers();
+		return result;
+	}
+
+	private Tuple output(String entityId, Object activityId){
+		Tuple newT = TupleFactory.getInstance().newTuple();
+		newT.append(entityId);
+		newT.append(activityId);
+		return newT;
+	}
+
+	/**
+	 * Drop the users beyond the map size or idle for too long.
+	 */
+	private void evictUsers(){
+		Iterator<Map.Entry<String, UserState>> itr = users.entrySet().iterator();
+		while ( itr.hasNext() ){
+			UserState state = itr.next().getValue();
+			if ( users.size() <= maxUsers && rows - state.lastRow <= idleRows )
+				break; // the rest are seen more recently
+			state.release();
+			itr.remove();
+		}
+	}
+
+	/**
+	 * The AEM state of a user.
+	 */
+	private static class UserState {
+		AEM model;
+		long lastRow; // the last row of the user
+
+		/**
+		 * Release the URLs of the user in the shared dictionary.
+		 */
+		void release(){
+			model.removeActivities(0, model.size());
+			model.releaseLastEntity();
+		}
+	}
+
+	@Override
+	public Schema outputSchema(Schema input){
+		try {
+			Schema outputTupleSchema = new Schema();
+			outputTupleSchema.add(new Schema.FieldSchema("entity_id", DataType.CHARARRAY));
+			outputTupleSchema.add(new Schema.FieldSchema("activity_id", longIds ? DataType.LONG : DataType.CHARARRAY));
+			return new Schema(new Schema.FieldSchema(getSchemaName(this.getClass().getName().toLowerCase(), input),
+	                                           outputTupleSchema,
+	                                           DataType.TUPLE));
+		}catch (FrontendException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
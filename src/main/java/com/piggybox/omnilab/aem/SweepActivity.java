@@ -0,0 +1,143 @@
+package com.piggybox.omnilab.aem;
+
+import org.apache.pig.AccumulatorEvalFunc;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+
+/**
+ * Run the AID algorithm of Activity-Entity Model with several configurations in a single pass,
+ * to calibrate the thresholds of AEM without rerunning the whole job.
+ * Input: a bag of tuples (HttpRequestStartTime, HttpRequestEndTime, URL, Referrer, ContentType, ID ..)
+ * in ascending order of start time, and an optional user key as DetectActivity.
+ * Return: a bag of tuples (config, entity_id, activity_id), config being the index of the configuration from 0.
+ * 
+ * Configurations are separated by semicolons, each giving the reading time, CONJ_ST_DIFF, SRAL_TDIFF2,
+ * PAGE_FAT and PAGE_SLIM separated by commas; trailing values may be left out for the defaults, e.g.
+ * SweepActivity('2s;3s;2s,0.5,10;2s,0.5,8,8,3', 'hash').
+ * 
+ * All configurations share the parsing of tuples, the URL dictionary and the resolved domains, while
+ * each has its own model, so every configuration gets exactly the activities of DetectActivity with it.
+ * 
+ * @author chenxm
+ *
+ */
+public class SweepActivity extends AccumulatorEvalFunc<DataBag>{
+	private double[][] configs; // reading time, CONJ_ST_DIFF, SRAL_TDIFF2, PAGE_FAT, PAGE_SLIM
+	private ActivityIdGenerator idGenerator; // resolved once, shared by the models of all users
+	private boolean longIds;
+	private AEM[] models = null;
+	private DataBag outputBag = null;
+	
+	public SweepActivity(String configSpec){
+		this(configSpec, ActivityIds.UUID_IDS);
+	}
+	
+	/**
+	 * @param configSpec Configurations separated by semicolons, e.g. "2s;3s,0.5,10".
+	 * @param idStrategy One of "uuid", "seq", "hash" and "hashlong", or the class name of an ActivityIdGenerator.
+	 */
+	public SweepActivity(String configSpec, String idStrategy){
+		String[] specs = configSpec.split(";");
+		this.configs = new double[specs.length][];
+		for ( int i = 0; i < specs.length; i++ ){
+			String[] values = specs[i].trim().split(",");
+			if ( values.length > 5 )
+				throw new IllegalArgumentException("Too many values in configuration: " + specs[i]);
+			double[] config = new double[]{2, AEM.CONJ_ST_DIFF, AEM.SRAL_TDIFF2, AEM.PAGE_FAT, AEM.PAGE_SLIM};
+			config[0] = DetectActivity.parseSeconds(values[0].trim());
+			for ( int j = 1; j < values.length; j++ )
+				config[j] = Double.parseDouble(values[j].trim());
+			configs[i] = config;
+		}
+		this.idGenerator = ActivityIds.forName(idStrategy);
+		this.longIds = idGenerator.isLong();
+		cleanup();
+	}
+	
+	@Override
+	public void accumulate(Tuple b) throws ExecException {
+		if ( b.size() > 1 && b.get(1) != null ){
+			for ( AEM model : models )
+				model.setUserKey(b.get(1).toString());
+		}
+		Entity[] entities = new Entity[models.length];
+		for ( Tuple t : (DataBag) b.get(0) ){
+			// Parse and intern once; other models copy the entity of the first.
+			entities[0] = models[0].createEntity((Double)t.get(0),
+					(Double)t.get(1),
+					(String)t.get(2),
+					(String)t.get(3),
+					(String)t.get(4),
+					(String)t.get(5),
+					t);
+			for ( int k = 1; k < models.length; k++ )
+				entities[k] = models[k].createEntity(entities[0]);
+			for ( int k = 0; k < models.length; k++ ){
+				int actCnt;
+				if ( models[k].addEntityToModel(entities[k]) && (actCnt = models[k].size()) > 0 )
+					dumpActivitiesToBag(k, 0, actCnt-1); // leave the last activity to add new entities.
+			}
+		}
+	}
+	
+	@Override
+	public void cleanup() {
+		this.outputBag = BagFactory.getInstance().newDefaultBag();
+		UrlDictionary urls = new UrlDictionary();
+		DomainCache domains = new DomainCache();
+		this.models = new AEM[configs.length];
+		for ( int k = 0; k < configs.length; k++ ){
+			double[] config = configs[k];
+			models[k] = new AEM(config[0], urls, domains, null);
+			models[k].setThresholds(config[1], config[2], config[3], config[4]);
+			models[k].setIdGenerator(idGenerator);
+		}
+	}
+	
+	@Override
+	public DataBag getValue() {
+		for ( int k = 0; k < models.length; k++ )
+			dumpActivitiesToBag(k, 0, models[k].size());
+		return this.outputBag;
+	}
+	
+	private void dumpActivitiesToBag(int config, int startIndex, int endIndex){
+		AEM model = models[config];
+		for ( Activity act : model.getActivities(startIndex, endIndex) ){
+			Object activityId = model.getActivityID(act);
+			for ( Entity entity : act.getAllEntities() ){
+				Tuple newT = TupleFactory.getInstance().newTuple();
+				newT.append(config);
+				newT.append(entity.getID());
+				newT.append(activityId);
+				this.outputBag.add(newT);
+			}
+		}
+		model.removeActivities(startIndex, endIndex);
+	}
+	
+	@Override
+	public Schema outputSchema(Schema input){
+		try {
+			Schema.FieldSchema inputFieldSchema = input.getField(0);
+			if (inputFieldSchema.type != DataType.BAG){
+				throw new RuntimeException("Expected a BAG as input");
+			}
+			Schema outputTupleSchema = new Schema();
+			outputTupleSchema.add(new Schema.FieldSchema("config", DataType.INTEGER));
+			outputTupleSchema.add(new Schema.FieldSchema("entity_id", DataType.CHARARRAY));
+			outputTupleSchema.add(new Schema.FieldSchema("activity_id", longIds ? DataType.LONG : DataType.CHARARRAY));
+			return new Schema(new Schema.FieldSchema(getSchemaName(this.getClass().getName().toLowerCase(), input),
+	                                           outputTupleSchema,
+	                                           DataType.BAG));
+		}catch (FrontendException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
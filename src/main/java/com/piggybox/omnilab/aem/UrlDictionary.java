@@ -0,0 +1,107 @@
+package com.piggybox.omnilab.aem;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A per-model dictionary interning URL strings to dense int IDs.
+ * IDs are reference counted and recycled once no entity of the model holds them,
+ * so the dictionary only grows with the URLs of open activities.
+ * Models sharing a dictionary also share the top private domains resolved for its URLs.
+ * @author chenxm
+ */
+class UrlDictionary {
+    public static final int NONE = -1; // ID of a null URL
+
+    private Map<String, Integer> ids = new HashMap<String, Integer>();
+    private String[] urls = new String[64];
+    private String[] domains = new String[64]; // resolved top private domains, null if not yet
+    private int[] refCounts = new int[64];
+    private int[] freeIds = new int[64];
+    private int freeCount = 0;
+    private int nextId = 0;
+
+    /**
+     * Get the ID of given URL and hold a reference to it.
+     * @param url
+     * @return The URL ID, or NONE for null.
+     */
+    public int intern(String url){
+        if ( url == null )
+            return NONE;
+        Integer id = ids.get(url);
+        if ( id == null ){
+            id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+            if ( id >= urls.length ){
+                urls = Arrays.copyOf(urls, urls.length * 2);
+                domains = Arrays.copyOf(domains, domains.length * 2);
+                refCounts = Arrays.copyOf(refCounts, refCounts.length * 2);
+            }
+            urls[id] = url;
+            ids.put(url, id);
+        }
+        refCounts[id]++;
+        return id;
+    }
+
+    /**
+     * Hold one more reference to given ID.
+     * @param id
+     */
+    public void retain(int id){
+        if ( id != NONE )
+            refCounts[id]++;
+    }
+
+    /**
+     * Drop a reference to given ID. The ID is recycled when no reference is left.
+     * @param id
+     */
+    public void release(int id){
+        if ( id == NONE || --refCounts[id] > 0 )
+            return;
+        ids.remove(urls[id]);
+        urls[id] = null;
+        domains[id] = null;
+        if ( freeCount == freeIds.length )
+            freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+        freeIds[freeCount++] = id;
+    }
+
+    /**
+     * Get the URL string of given ID.
+     * @param id
+     * @return The URL, or null for NONE.
+     */
+    public String get(int id){
+        return id == NONE ? null : urls[id];
+    }
+
+    /**
+     * Get and set the top private domain resolved for the URL of given ID.
+     */
+    public String getDomain(int id){
+        return id == NONE ? null : domains[id];
+    }
+    public void setDomain(int id, String domain){
+        if ( id != NONE )
+            domains[id] = domain;
+    }
+
+    /**
+     * Get the upper bound of IDs ever issued, to size arrays indexed by ID.
+     * @return
+     */
+    public int capacity(){
+        return urls.length;
+    }
+
+    /**
+     * Get the number of URLs alive in the dictionary.
+     * @return
+     */
+    public int size(){
+        return ids.size();
+    }
+}
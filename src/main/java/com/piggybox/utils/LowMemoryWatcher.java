@@ -0,0 +1,97 @@
+package com.piggybox.utils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * A JVM-wide watcher of heap pressure, in the same way as Pig's SpillableMemoryManager:
+ * it listens to usage threshold notifications of the largest heap pool, i.e. the tenured generation,
+ * and every notification bumps a counter. Memory holders poll the counter cheaply from their
+ * processing loops and give up memory when it has changed since their last look.
+ *
+ * The watcher only listens: the thresholds are JVM-wide and owned by Pig's SpillableMemoryManager
+ * in a Pig task, so they are never changed unless setThresholds() is called explicitly, e.g. in a
+ * standalone program. Without thresholds, only explicit notifications are seen.
+ * @author chenxm
+ */
+public class LowMemoryWatcher implements NotificationListener {
+	// Fractions of the tenured pool, the same as Pig's defaults.
+	public static final double COLLECTION_THRESHOLD = 0.5;
+	public static final double USAGE_THRESHOLD = 0.7;
+	private static LowMemoryWatcher instance = null;
+	
+	private AtomicLong events = new AtomicLong();
+	private MemoryPoolMXBean tenured = null;
+	
+	private LowMemoryWatcher(){
+		for ( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ){
+			if ( pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported() &&
+					(tenured == null || pool.getUsage().getMax() > tenured.getUsage().getMax()) )
+				tenured = pool;
+		}
+		if ( tenured == null || tenured.getUsage().getMax() <= 0 ){
+			tenured = null;
+			return; // no watchable pool, only explicit notifications are seen.
+		}
+		((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(this, null, null);
+	}
+	
+	public static synchronized LowMemoryWatcher getInstance(){
+		if ( instance == null )
+			instance = new LowMemoryWatcher();
+		return instance;
+	}
+	
+	@Override
+	public void handleNotification(Notification n, Object handback) {
+		if ( MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(n.getType()) ||
+				MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(n.getType()) )
+			notifyLowMemory();
+	}
+	
+	/**
+	 * Check if the JVM sends notifications, i.e. a usage or collection threshold is set on the tenured pool.
+	 * @return
+	 */
+	public boolean hasThresholds(){
+		return tenured != null && (tenured.getUsageThreshold() > 0 ||
+				(tenured.isCollectionUsageThresholdSupported() && tenured.getCollectionUsageThreshold() > 0));
+	}
+	
+	/**
+	 * Set the usage and collection thresholds of the tenured pool, overriding those of anybody else in the JVM.
+	 * Not to be called from a Pig task, where SpillableMemoryManager owns the thresholds.
+	 * @param usageFraction Fraction of the pool, e.g. USAGE_THRESHOLD.
+	 * @param collectionFraction Fraction of the pool after a collection, e.g. COLLECTION_THRESHOLD.
+	 */
+	public synchronized void setThresholds(double usageFraction, double collectionFraction){
+		if ( tenured == null )
+			return;
+		long max = tenured.getUsage().getMax();
+		tenured.setUsageThreshold((long) (max * usageFraction));
+		if ( tenured.isCollectionUsageThresholdSupported() )
+			tenured.setCollectionUsageThreshold((long) (max * collectionFraction));
+	}
+	
+	/**
+	 * Signal heap pressure to all memory holders, e.g. from another source of memory alerts.
+	 */
+	public void notifyLowMemory(){
+		events.incrementAndGet();
+	}
+	
+	/**
+	 * Get the number of low memory events so far. It only grows.
+	 * @return
+	 */
+	public long getEvents(){
+		return events.get();
+	}
+}
@@ -0,0 +1,53 @@
+package com.piggybox.utils;
+
+/**
+ * Sorting helpers on primitive arrays, free of boxing and comparators.
+ * @author chenxm
+ */
+public class PrimitiveSort {
+	private static final int INSERTION_THRESHOLD = 16;
+
+	/**
+	 * Get the stable sorting order of given keys, i.e. the indices of keys in ascending order,
+	 * equal keys keeping their original order.
+	 * @param keys
+	 * @param n The number of keys to sort, from the head of the array.
+	 * @return The indices in sorted order.
+	 */
+	public static int[] stableOrder(double[] keys, int n){
+		int[] order = new int[n];
+		int[] buffer = new int[n];
+		for ( int i = 0; i < n; i++ )
+			order[i] = i;
+		mergeSort(keys, order, buffer, 0, n);
+		return order;
+	}
+
+	private static void mergeSort(double[] keys, int[] order, int[] buffer, int from, int to){
+		if ( to - from <= INSERTION_THRESHOLD ){
+			for ( int i = from + 1; i < to; i++ ){
+				int idx = order[i];
+				int j = i - 1;
+				while ( j >= from && keys[order[j]] > keys[idx] ){
+					order[j + 1] = order[j];
+					j--;
+				}
+				order[j + 1] = idx;
+			}
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		mergeSort(keys, order, buffer, from, mid);
+		mergeSort(keys, order, buffer, mid, to);
+		if ( keys[order[mid - 1]] <= keys[order[mid]] )
+			return; // already in order, common for nearly sorted input
+		System.arraycopy(order, from, buffer, from, to - from);
+		int i = from, j = mid, k = from;
+		while ( i < mid && j < to )
+			order[k++] = keys[buffer[j]] < keys[buffer[i]] ? buffer[j++] : buffer[i++];
+		while ( i < mid )
+			order[k++] = buffer[i++];
+		while ( j < to )
+			order[k++] = buffer[j++];
+	}
+}
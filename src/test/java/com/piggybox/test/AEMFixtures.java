@@ -0,0 +1,80 @@
+package com.piggybox.test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+
+/**
+ * The HTTP requests shared by the tests of AEM, as (start, end, URL, referrer, content type, ID).
+ */
+class AEMFixtures {
+	private static TupleFactory tupleFactory = TupleFactory.getInstance();
+	private static BagFactory bagFactory = BagFactory.getInstance();
+
+	/**
+	 * Three activities of a user: a page with two images, a page with an image, and a page alone.
+	 */
+	static DataBag prepareBag(){
+		DataBag dataBag = bagFactory.newDefaultBag();
+		dataBag.add(prepareTuple(1.0, 1.1, "http://www.bar.com/1.html", null, "text/html", "100"));
+		dataBag.add(prepareTuple(1.1, 1.2, "http://www.bar.com/a.png", "http://www.bar.com/1.html", "image/png", "101"));
+		dataBag.add(prepareTuple(1.1, 1.2, "http://www.bar.com/b.png", "http://www.bar.com/1.html", "image/png", "102"));
+		dataBag.add(prepareTuple(6.1, 6.2, "http://www.bar.com/2.html", null, "text/html", "103"));
+		dataBag.add(prepareTuple(6.1, 6.2, "http://www.bar.com/c.png", "http://www.bar.com/2.html", "image/png", "104"));
+		dataBag.add(prepareTuple(20.1, 20.2, "http://www.bar.com/x.html", null, "text/html", "200"));
+		return dataBag;
+	}
+
+	/**
+	 * A home page and an article with more images than a fat page, so that the last image cuts
+	 * the article off the home page into an activity of its own.
+	 */
+	static DataBag prepareFatArticle(){
+		DataBag bag = bagFactory.newDefaultBag();
+		bag.add(prepareTuple(1.0, 1.1, "http://www.a.com/", null, "text/html", "home"));
+		bag.add(prepareTuple(1.2, 1.3, "http://www.a.com/article.html", "http://www.a.com/", "text/html", "article"));
+		for ( int i = 1; i <= 6; i++ )
+			bag.add(prepareTuple(1.3 + 0.05*i, 1.55 + 0.05*i, "http://www.a.com/" + i + ".png",
+					"http://www.a.com/article.html", "image/png", "img" + i));
+		return bag;
+	}
+
+	static Tuple prepareTuple(Double start, Double end, String url, String referrer, String type, String id){
+		Tuple tuple = tupleFactory.newTuple();
+		tuple.append(start);
+		tuple.append(end);
+		tuple.append(url);
+		tuple.append(referrer);
+		tuple.append(type);
+		tuple.append(id);
+		return tuple;
+	}
+
+	/**
+	 * Count the distinct activity IDs, taken from the last field of each tuple.
+	 */
+	static int countActivities(List<Tuple> result) throws IOException{
+		Set<Object> aids = new HashSet<Object>();
+		for ( Tuple t : result )
+			aids.add(t.get(t.size()-1));
+		return aids.size();
+	}
+
+	/**
+	 * Map the entity IDs to activity IDs of the output of the "ids" mode.
+	 */
+	static Map<Object, Object> activityById(DataBag ids) throws IOException{
+		Map<Object, Object> result = new HashMap<Object, Object>();
+		for ( Tuple t : ids )
+			result.put(t.get(0), t.get(1));
+		return result;
+	}
+}
@@ -0,0 +1,74 @@
+package com.piggybox.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.piggybox.omnilab.aem.AEMBatchRunner;
+
+public class TestAEMBatchRunner {
+
+	@Test
+	public void testMalformedLines() throws IOException{
+		File inputDir = createTempDir("aem-input");
+		File outputDir = createTempDir("aem-output");
+		File input = new File(inputDir, "u1.log");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(input), "UTF-8");
+		writer.write("1.0\t1.2\thttp://www.bar.com/1.html\t\\N\ttext/html\t100\n");
+		writer.write("oops\t1.3\thttp://www.bar.com/a.png\thttp://www.bar.com/1.html\timage/png\t101\n");
+		writer.write("1.5\t1.7\n");
+		writer.write("1.6\t1.8\thttp://www.bar.com/b.png\thttp://www.bar.com/1.html\timage/png\t102\n");
+		writer.close();
+		long[] counts = new AEMBatchRunner(2, 0, "hash", outputDir).runUser(input);
+		Assert.assertEquals(2L, counts[0]);
+		Assert.assertEquals(1L, counts[1]);
+		Assert.assertEquals(2L, counts[2]);
+		List<String> lines = readLines(new File(outputDir, "u1.log"));
+		Assert.assertEquals(2, lines.size());
+		Assert.assertEquals(lines.get(0).split("\t")[6], lines.get(1).split("\t")[6]);
+	}
+
+	@Test
+	public void testMissingInput() throws IOException{
+		File outputDir = createTempDir("aem-output");
+		try {
+			new AEMBatchRunner(2, 0, "hash", outputDir).runUser(new File(outputDir, "missing.log"));
+			Assert.fail("Expected the missing input to fail");
+		} catch (IOException e) {
+			// No output is left behind.
+			Assert.assertFalse(new File(outputDir, "missing.log").exists());
+		}
+	}
+
+	private File createTempDir(String prefix) throws IOException{
+		File dir = File.createTempFile(prefix, "");
+		if ( ! dir.delete() || ! dir.mkdir() )
+			throw new IOException("Can not create directory: " + dir);
+		dir.deleteOnExit();
+		return dir;
+	}
+
+	private List<String> readLines(File file) throws IOException{
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ( (line = reader.readLine()) != null )
+				lines.add(line);
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+}
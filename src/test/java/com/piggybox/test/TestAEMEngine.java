@@ -0,0 +1,56 @@
+package com.piggybox.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.junit.Test;
+
+import com.piggybox.omnilab.aem.AEMEngine;
+import com.piggybox.omnilab.aem.ActivityIds;
+import com.piggybox.omnilab.aem.DetectActivity;
+import com.piggybox.utils.PigUtils;
+
+public class TestAEMEngine {
+	private TupleFactory tupleFactory = TupleFactory.getInstance();
+
+	@Test
+	public void testAEMEngine() throws IOException{
+		List<Tuple> expected = PigUtils.databagToList(new DetectActivity("2s", "0s", "ids", "seq").exec(tupleFactory.newTuple(Arrays.<Object>asList(AEMFixtures.prepareBag(), "u1"))));
+		final List<Object[]> closed = new ArrayList<Object[]>();
+		AEMEngine engine = new AEMEngine(2, new AEMEngine.ActivityListener(){
+			@Override
+			public void activityClosed(Object activityId, long seq, List<Object> payloads) {
+				for ( Object payload : payloads )
+					closed.add(new Object[]{payload, activityId});
+			}
+		});
+		final List<Object[]> attached = new ArrayList<Object[]>();
+		engine.setEntityListener(new AEMEngine.EntityListener(){
+			@Override
+			public void entityAttached(Object activityId, Object payload) {
+				attached.add(new Object[]{payload, activityId});
+			}
+		});
+		engine.setIdGenerator(ActivityIds.forName("seq"));
+		engine.setUserKey("u1");
+		for ( Tuple t : AEMFixtures.prepareBag() )
+			engine.addEntity((Double) t.get(0), (Double) t.get(1), (String) t.get(2), (String) t.get(3),
+					(String) t.get(4), (String) t.get(5), t.get(5));
+		Assert.assertEquals(6, closed.size() + 1); // the last activity is still open
+		Assert.assertEquals(6, attached.size()); // but all entities are attached
+		engine.flush();
+		Assert.assertEquals(0, engine.openActivities());
+		Assert.assertEquals(expected.size(), closed.size());
+		for ( int i = 0; i < expected.size(); i++ ){
+			Assert.assertEquals(expected.get(i).get(0), closed.get(i)[0]);
+			Assert.assertEquals(expected.get(i).get(1), closed.get(i)[1]);
+			Assert.assertEquals(expected.get(i).get(1), attached.get(i)[1]);
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package com.piggybox.test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.junit.Test;
+
+import com.piggybox.omnilab.aem.AEMServer;
+import com.piggybox.omnilab.aem.DetectActivity;
+import com.piggybox.utils.PigUtils;
+
+public class TestAEMServer {
+	private TupleFactory tupleFactory = TupleFactory.getInstance();
+	private BagFactory bagFactory = BagFactory.getInstance();
+
+	@Test
+	public void testAEMServer() throws IOException{
+		StringWriter output = new StringWriter();
+		AEMServer server = new AEMServer(2, 0, "hash", 1000, 30, output);
+		Set<Tuple> expected = new HashSet<Tuple>();
+		for ( String user : new String[]{"u1", "u2"} ){
+			double offset = user.equals("u1") ? 0 : 100; // u1 is idle when u2 comes
+			DataBag bag = bagFactory.newDefaultBag();
+			for ( Tuple t : AEMFixtures.prepareBag() ){
+				t.set(0, (Double) t.get(0) + offset);
+				t.set(1, (Double) t.get(1) + offset);
+				bag.add(t);
+				server.process(toLine(user, t));
+				// Assigned at once, before its activity is closed.
+				Assert.assertTrue(output.toString().matches("(?s).*A\\t" + user + "\\t\\w+\\t" + t.get(5) + "\n.*"));
+			}
+			expected.addAll(PigUtils.databagToList(new DetectActivity("2s", "0s", "ids", "hash")
+					.exec(tupleFactory.newTuple(Arrays.<Object>asList(bag, user)))));
+		}
+		server.process("u3\tnot-a-time");
+		Assert.assertEquals(1, server.getMalformedCount());
+		Assert.assertEquals(1, server.getUserCount()); // u1 is flushed
+		server.flush();
+		List<String> lines = Arrays.asList(output.toString().split("\n"));
+		Assert.assertEquals(expected, entities(lines));
+		Assert.assertEquals(expected.size(), lines.size() - server.getActivityCount()); // no entity assigned twice
+		Assert.assertEquals(AEMFixtures.countActivities(new ArrayList<Tuple>(expected)), server.getActivityCount());
+	}
+
+	@Test
+	public void testLateRecords() throws IOException{
+		StringWriter output = new StringWriter();
+		AEMServer server = new AEMServer(2, 0, "hash", 1000, 30, output);
+		DataBag bag = AEMFixtures.prepareBag();
+		for ( Tuple t : bag )
+			server.process(toLine("u1", t));
+		// Starts before the latest record of u1, referring to the page of an activity already closed.
+		server.process(toLine("u1", AEMFixtures.prepareTuple(6.15, 6.3, "http://www.bar.com/d.png",
+				"http://www.bar.com/2.html", "image/png", "105")));
+		Assert.assertEquals(1, server.getLateCount());
+		server.flush();
+		Set<Tuple> expected = new HashSet<Tuple>(PigUtils.databagToList(new DetectActivity("2s", "0s", "ids", "hash")
+				.exec(tupleFactory.newTuple(Arrays.<Object>asList(bag, "u1")))));
+		Assert.assertEquals(expected, entities(Arrays.asList(output.toString().split("\n"))));
+		Assert.assertEquals(3, server.getActivityCount());
+	}
+
+	@Test
+	public void testCutAfterAssigned() throws IOException{
+		StringWriter output = new StringWriter();
+		AEMServer server = new AEMServer(2, 0, "hash", 1000, 30, output);
+		DataBag bag = AEMFixtures.prepareFatArticle();
+		for ( Tuple t : bag )
+			server.process(toLine("u1", t));
+		server.stop();
+		// Stopped, the open users are flushed and later records ignored.
+		server.process(toLine("u1", AEMFixtures.prepareTuple(9.0, 9.1, "http://www.a.com/", null, "text/html", "late")));
+		Assert.assertEquals(8, server.getRecordCount());
+		Assert.assertEquals(0, server.getUserCount());
+		// The article and its first images are assigned to the home page, then again to the article.
+		List<String> lines = Arrays.asList(output.toString().split("\n"));
+		int assignments = 0;
+		for ( String line : lines )
+			if ( line.startsWith("A\t") )
+				assignments++;
+		Assert.assertEquals(8 + 6, assignments);
+		Set<Tuple> expected = new HashSet<Tuple>(PigUtils.databagToList(new DetectActivity("2s", "0s", "ids", "hash")
+				.exec(tupleFactory.newTuple(Arrays.<Object>asList(bag, "u1")))));
+		Assert.assertEquals(expected, entities(lines));
+	}
+
+	private String toLine(String user, Tuple t) throws IOException{
+		StringBuilder line = new StringBuilder(user);
+		for ( Object field : t.getAll() )
+			line.append('\t').append(field == null ? "\\N" : field);
+		return line.toString();
+	}
+
+	/**
+	 * The (ID, activity) pairs of the entity lines of the output, the last line of an entity holding.
+	 */
+	private Set<Tuple> entities(List<String> lines){
+		Map<String, Tuple> result = new HashMap<String, Tuple>();
+		for ( String line : lines ){
+			String[] fields = line.split("\t");
+			if ( fields[0].equals("A") )
+				result.put(fields[1] + "\t" + fields[3], tupleFactory.newTuple(Arrays.<Object>asList(fields[3], fields[2])));
+		}
+		return new HashSet<Tuple>(result.values());
+	}
+}
@@ -1,6 +1,12 @@
 package com.piggybox.test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
 
 import junit.framework.Assert;
 
@@ -10,6 +16,7 @@ import org.apache.pig.data.Tuple;
 import org.apache.pig.data.TupleFactory;
 import org.junit.Test;
 
+import com.piggybox.omnilab.aem.FullCompletionTime;
 import com.piggybox.omnilab.aem.PerceivedCompletionTime;
 
 public class TestActivityCompletionTime {
@@ -24,6 +31,79 @@ public class TestActivityCompletionTime {
 		Assert.assertEquals(1.5, output.doubleValue());
 	}
 	
+	@Test
+	public void testAccumulate() throws IOException{
+		PerceivedCompletionTime func = new PerceivedCompletionTime(0.7);
+		for ( Tuple t : prepareInput() )
+			func.accumulate(tupleFactory.newTuple(bagFactory.newDefaultBag(Arrays.asList(t))));
+		Assert.assertEquals(1.5, func.getValue().doubleValue());
+		func.cleanup();
+		Assert.assertNull(func.getValue());
+	}
+	
+	@Test
+	public void testAlgebraic() throws IOException{
+		FullCompletionTime.Initial initial = new FullCompletionTime.Initial();
+		DataBag partials = bagFactory.newDefaultBag();
+		for ( Tuple t : prepareInput() )
+			partials.add(initial.exec(tupleFactory.newTuple(bagFactory.newDefaultBag(Arrays.asList(t)))));
+		partials.add(initial.exec(tupleFactory.newTuple(bagFactory.newDefaultBag(Arrays.asList(prepareInputItem(null, 9.0))))));
+		Tuple intermed = new FullCompletionTime.Intermed().exec(tupleFactory.newTuple(partials));
+		Assert.assertEquals(3, intermed.size());
+		Assert.assertEquals(4L, intermed.get(2));
+		Double output = new FullCompletionTime.Final().exec(
+				tupleFactory.newTuple(bagFactory.newDefaultBag(Arrays.asList(intermed))));
+		DataBag whole = prepareInput();
+		whole.add(prepareInputItem(null, 9.0));
+		Assert.assertEquals(2.0, output);
+		Assert.assertEquals(new PerceivedCompletionTime("1.0").call(whole), output);
+		Assert.assertEquals(output, new FullCompletionTime().call(whole));
+		Assert.assertNull(new FullCompletionTime.Final().exec(tupleFactory.newTuple(bagFactory.newDefaultBag())));
+	}
+	
+	@Test
+	public void testTrimByQuantile() throws IOException{
+		// The slowest entity comes first in bag order, yet is dropped.
+		DataBag input = bagFactory.newDefaultBag();
+		input.add(prepareInputItem(0.5, 9.0));
+		for ( Tuple t : prepareInput() )
+			input.add(t);
+		input.add(prepareInputItem(null, 1.0));
+		Assert.assertEquals(8.5, new PerceivedCompletionTime("0.75").call(input));
+		Assert.assertEquals(2.0, new PerceivedCompletionTime("0.75", "quantile").call(input));
+		// Compared with sorting by end time, with ties.
+		Random random = new Random(11);
+		for ( int round = 0; round < 200; round++ ){
+			int n = 1 + random.nextInt(60);
+			List<double[]> pairs = new ArrayList<double[]>();
+			DataBag bag = bagFactory.newDefaultBag();
+			for ( int i = 0; i < n; i++ ){
+				double start = random.nextInt(50);
+				double[] pair = new double[]{start, start + random.nextInt(20)};
+				pairs.add(pair);
+				bag.add(prepareInputItem(pair[0], pair[1]));
+			}
+			Collections.sort(pairs, new Comparator<double[]>(){
+				@Override
+				public int compare(double[] a, double[] b){
+					return Double.compare(a[1], b[1]);
+				}
+			});
+			double portion = random.nextDouble();
+			int k = (int) Math.round(n*portion);
+			Double expected = null;
+			for ( int i = 0; i < k; i++ )
+				expected = expected == null ? pairs.get(i)[0] : Math.min(expected, pairs.get(i)[0]);
+			if ( expected != null )
+				expected = pairs.get(k-1)[1] - expected;
+			Double result = new PerceivedCompletionTime(String.valueOf(portion), "quantile").call(bag);
+			if ( expected == null )
+				Assert.assertNull(result);
+			else
+				Assert.assertEquals(expected, result, 0);
+		}
+	}
+	
 	private DataBag prepareInput(){
 		DataBag dataBag = bagFactory.newDefaultBag();
 		Tuple t1 = prepareInputItem(1.0, 2.0);
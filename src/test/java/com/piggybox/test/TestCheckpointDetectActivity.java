@@ -0,0 +1,46 @@
+package com.piggybox.test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.junit.Test;
+
+import com.piggybox.omnilab.aem.CheckpointDetectActivity;
+import com.piggybox.omnilab.aem.DetectActivity;
+import com.piggybox.utils.PigUtils;
+
+public class TestCheckpointDetectActivity {
+	private TupleFactory tupleFactory = TupleFactory.getInstance();
+	private BagFactory bagFactory = BagFactory.getInstance();
+
+	@Test
+	public void testCheckpoint() throws IOException{
+		List<Tuple> all = PigUtils.databagToList(AEMFixtures.prepareBag());
+		DataBag day1 = bagFactory.newDefaultBag(all.subList(0, 4));
+		DataBag day2 = bagFactory.newDefaultBag(all.subList(4, all.size()));
+		List<Tuple> expected = PigUtils.databagToList(new DetectActivity("2s", "0s", "ids", "hash")
+				.exec(tupleFactory.newTuple(Arrays.<Object>asList(AEMFixtures.prepareBag(), "u1"))));
+		CheckpointDetectActivity func = new CheckpointDetectActivity("2s", "0s", "ids", "hash");
+		Tuple first = func.exec(tupleFactory.newTuple(Arrays.<Object>asList(day1, null, "u1")));
+		Assert.assertNotNull(first.get(1));
+		Tuple second = func.exec(tupleFactory.newTuple(Arrays.<Object>asList(day2, first.get(1), "u1")));
+		Assert.assertNotNull(second.get(1));
+		// An idle user flushes the open activities and leaves no checkpoint behind.
+		Tuple idle = func.exec(tupleFactory.newTuple(Arrays.<Object>asList(null, second.get(1), "u1")));
+		Assert.assertNull(idle.get(1));
+		Set<Tuple> result = new HashSet<Tuple>();
+		for ( Tuple t : new Tuple[]{first, second, idle} )
+			result.addAll(PigUtils.databagToList((DataBag) t.get(0)));
+		Assert.assertEquals(expected.size(), result.size());
+		Assert.assertEquals(new HashSet<Tuple>(expected), result);
+	}
+}
@@ -0,0 +1,44 @@
+package com.piggybox.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.junit.Test;
+
+import com.piggybox.omnilab.aem.ChunkByGap;
+import com.piggybox.omnilab.aem.DetectActivity;
+import com.piggybox.utils.PigUtils;
+
+public class TestChunkByGap {
+	private TupleFactory tupleFactory = TupleFactory.getInstance();
+	private BagFactory bagFactory = BagFactory.getInstance();
+
+	@Test
+	public void testChunkByGap() throws IOException{
+		List<Tuple> chunked = PigUtils.databagToList(new ChunkByGap("4").exec(tupleFactory.newTuple(AEMFixtures.prepareBag())));
+		Assert.assertEquals(6, chunked.size());
+		Assert.assertEquals(7, chunked.get(0).size());
+		// The gap before the last page splits; the first segment is kept whole though above the maximum.
+		Assert.assertEquals(0, chunked.get(0).get(6));
+		Assert.assertEquals(0, chunked.get(4).get(6));
+		Assert.assertEquals(1, chunked.get(5).get(6));
+		// Detecting chunks one by one gives the same activities.
+		List<Tuple> expected = PigUtils.databagToList(new DetectActivity("2s", "0s", "ids", "hash").exec(tupleFactory.newTuple(AEMFixtures.prepareBag())));
+		List<Tuple> result = new ArrayList<Tuple>();
+		for ( int chunk = 0; chunk < 2; chunk++ ){
+			DataBag bag = bagFactory.newDefaultBag();
+			for ( Tuple t : chunked )
+				if ( t.get(6).equals(chunk) )
+					bag.add(t);
+			result.addAll(PigUtils.databagToList(new DetectActivity("2s", "0s", "ids", "hash").exec(tupleFactory.newTuple(bag))));
+		}
+		Assert.assertEquals(expected, result);
+	}
+}
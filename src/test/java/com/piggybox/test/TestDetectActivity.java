@@ -1,7 +1,10 @@
 package com.piggybox.test;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
 import junit.framework.Assert;
 
@@ -11,6 +14,7 @@ import org.apache.pig.data.Tuple;
 import org.apache.pig.data.TupleFactory;
 import org.junit.Test;
 
+import com.piggybox.omnilab.aem.CheckpointDetectActivity;
 import com.piggybox.omnilab.aem.DetectActivity;
 import com.piggybox.utils.PigUtils;
 
@@ -21,37 +25,155 @@ public class TestDetectActivity {
 	@Test
 	public void testDetectActivity() throws IOException{
 		Tuple input = tupleFactory.newTuple();
-		input.append(prepareBag());
+		input.append(AEMFixtures.prepareBag());
 		DetectActivity func = new DetectActivity();
 		List<Tuple> result = PigUtils.databagToList(func.exec(input));
 		Assert.assertEquals(6, result.size());
 	}
 	
-	private DataBag prepareBag(){
-		Tuple t1 = prepareTuple(1.0, 1.1, "http://www.bar.com/1.html", null, "text/html", "100");
-		Tuple t2 = prepareTuple(1.1, 1.2, "http://www.bar.com/a.png", "http://www.bar.com/1.html", "image/png", "101");
-		Tuple t3 = prepareTuple(1.1, 1.2, "http://www.bar.com/b.png", "http://www.bar.com/1.html", "image/png", "102");
-		Tuple t4 = prepareTuple(6.1, 6.2, "http://www.bar.com/2.html", null, "text/html", "103");
-		Tuple t5 = prepareTuple(6.1, 6.2, "http://www.bar.com/c.png", "http://www.bar.com/2.html", "image/png", "104");
-		Tuple t6 = prepareTuple(20.1, 20.2, "http://www.bar.com/x.html", null, "text/html", "200");
-		DataBag dataBag = bagFactory.newDefaultBag();
-		dataBag.add(t1);
-		dataBag.add(t2);
-		dataBag.add(t3);
-		dataBag.add(t4);
-		dataBag.add(t5);
-		dataBag.add(t6);
-		return dataBag;
+	@Test
+	public void testAccumulate() throws IOException{
+		List<Tuple> tuples = PigUtils.databagToList(AEMFixtures.prepareBag());
+		DataBag chunk1 = bagFactory.newDefaultBag(tuples.subList(0, 2));
+		DataBag chunk2 = bagFactory.newDefaultBag(tuples.subList(2, tuples.size()));
+		DetectActivity func = new DetectActivity();
+		func.accumulate(tupleFactory.newTuple(chunk1));
+		func.accumulate(tupleFactory.newTuple(chunk2));
+		List<Tuple> result = PigUtils.databagToList(func.getValue());
+		func.cleanup();
+		Assert.assertEquals(6, result.size());
+		// The images of the first page are in the same activity across chunks.
+		Assert.assertEquals(result.get(0).get(6), result.get(1).get(6));
+		Assert.assertEquals(result.get(0).get(6), result.get(2).get(6));
+		Assert.assertEquals(AEMFixtures.countActivities(PigUtils.databagToList(func.exec(tupleFactory.newTuple(AEMFixtures.prepareBag())))),
+				AEMFixtures.countActivities(result));
+	}
+	
+	@Test
+	public void testOutputModes() throws IOException{
+		List<Tuple> full = PigUtils.databagToList(new DetectActivity("2s", "0s", "full").exec(tupleFactory.newTuple(AEMFixtures.prepareBag())));
+		List<Tuple> ids = PigUtils.databagToList(new DetectActivity("2s", "0s", "ids").exec(tupleFactory.newTuple(AEMFixtures.prepareBag())));
+		List<Tuple> ordinal = PigUtils.databagToList(new DetectActivity("2s", "0s", "ordinal").exec(tupleFactory.newTuple(AEMFixtures.prepareBag())));
+		DataBag input = AEMFixtures.prepareBag();
+		List<Tuple> append = PigUtils.databagToList(new DetectActivity("2s", "0s", "append").exec(tupleFactory.newTuple(input)));
+		Assert.assertEquals(6, ids.size());
+		Assert.assertEquals(6, ordinal.size());
+		Assert.assertEquals(2, ids.get(0).size());
+		Assert.assertEquals("100", ids.get(0).get(0));
+		Assert.assertEquals(0L, ordinal.get(0).get(0));
+		Assert.assertEquals(AEMFixtures.countActivities(full), AEMFixtures.countActivities(ordinal));
+		// Appended in place
+		Assert.assertEquals(7, append.get(0).size());
+		Assert.assertTrue(append.contains(input.iterator().next()));
+	}
+	
+	@Test
+	public void testWatermark() throws IOException{
+		// A chatty user polling different hosts every second, without any long gap.
+		DataBag bag = bagFactory.newDefaultBag();
+		for ( int i = 0; i < 100; i++ )
+			bag.add(AEMFixtures.prepareTuple(i*1.0, i*1.0+0.2, "http://www.host" + i + ".com/poll", null, "text/plain", String.valueOf(i)));
+		List<Tuple> expected = PigUtils.databagToList(new DetectActivity("2s").exec(tupleFactory.newTuple(bag)));
+		List<Tuple> result = PigUtils.databagToList(new DetectActivity("2s", "30s").exec(tupleFactory.newTuple(bag)));
+		Assert.assertEquals(expected.size(), result.size());
+		Assert.assertEquals(AEMFixtures.countActivities(expected), AEMFixtures.countActivities(result));
+		// Only the activities within the horizon stay open: those ending before 99-30 are closed and output.
+		Tuple open = new CheckpointDetectActivity("2s", "0s", "ids").exec(tupleFactory.newTuple(bag));
+		Tuple bounded = new CheckpointDetectActivity("2s", "30s", "ids").exec(tupleFactory.newTuple(bag));
+		Assert.assertEquals(0, ((DataBag) open.get(0)).size());
+		Assert.assertEquals(69, ((DataBag) bounded.get(0)).size());
+		List<Tuple> closed = PigUtils.databagToList((DataBag) bounded.get(0));
+		for ( int i = 0; i < closed.size(); i++ )
+			Assert.assertEquals(String.valueOf(i), closed.get(i).get(0));
+		// A closed activity can no longer be referred to.
+		bag.add(AEMFixtures.prepareTuple(99.5, 99.6, "http://www.host0.com/more", "http://www.host0.com/poll", "text/plain", "ref"));
+		Map<Object, Object> linked = AEMFixtures.activityById(new DetectActivity("2s", "0s", "ids", "hash").exec(tupleFactory.newTuple(bag)));
+		Map<Object, Object> evicted = AEMFixtures.activityById(new DetectActivity("2s", "30s", "ids", "hash").exec(tupleFactory.newTuple(bag)));
+		Assert.assertEquals(linked.get("0"), linked.get("ref"));
+		Assert.assertFalse(evicted.get("0").equals(evicted.get("ref")));
+	}
+	
+	@Test
+	public void testActivityIds() throws IOException{
+		List<Tuple> expected = PigUtils.databagToList(new DetectActivity("2s").exec(tupleFactory.newTuple(AEMFixtures.prepareBag())));
+		List<Tuple> seq = PigUtils.databagToList(new DetectActivity("2s", "0s", "ids", "seq").exec(tupleFactory.newTuple(Arrays.<Object>asList(AEMFixtures.prepareBag(), "u1"))));
+		List<Tuple> hash1 = PigUtils.databagToList(new DetectActivity("2s", "0s", "ids", "hash").exec(tupleFactory.newTuple(AEMFixtures.prepareBag())));
+		List<Tuple> hash2 = PigUtils.databagToList(new DetectActivity("2s", "0s", "ids", "hash").exec(tupleFactory.newTuple(AEMFixtures.prepareBag())));
+		List<Tuple> hashlong = PigUtils.databagToList(new DetectActivity("2s", "0s", "ids", "hashlong").exec(tupleFactory.newTuple(AEMFixtures.prepareBag())));
+		Assert.assertEquals("u1-0", seq.get(0).get(1));
+		Assert.assertEquals(AEMFixtures.countActivities(expected), AEMFixtures.countActivities(seq));
+		Assert.assertEquals(AEMFixtures.countActivities(expected), AEMFixtures.countActivities(hash1));
+		// Reproducible across runs
+		Assert.assertEquals(hash1, hash2);
+		Assert.assertEquals(16, ((String) hash1.get(0).get(1)).length());
+		Assert.assertTrue(hashlong.get(0).get(1) instanceof Long);
+		// Sequences of different users would collide without a user key.
+		try {
+			new DetectActivity("2s", "0s", "ids", "seq").exec(tupleFactory.newTuple(AEMFixtures.prepareBag()));
+			Assert.fail("Expected a user key to be required");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testReorder() throws IOException{
+		List<Tuple> tuples = PigUtils.databagToList(AEMFixtures.prepareBag());
+		// The second page captured ahead of the first one, entities starting at the same time kept in order.
+		DataBag shuffled = bagFactory.newDefaultBag();
+		for ( int i : new int[]{3, 4, 0, 1, 2, 5} )
+			shuffled.add(tuples.get(i));
+		List<Tuple> expected = PigUtils.databagToList(new DetectActivity("2s", "0s", "ids", "hash").exec(tupleFactory.newTuple(AEMFixtures.prepareBag())));
+		// Buffered within the window
+		List<Tuple> buffered = PigUtils.databagToList(new DetectActivity("2s", "0s", "ids", "hash", "30s").exec(tupleFactory.newTuple(shuffled)));
+		// Sorted in the UDF
+		List<Tuple> sorted = PigUtils.databagToList(new DetectActivity("2s", "0s", "ids", "hash", "1s").exec(tupleFactory.newTuple(shuffled)));
+		Assert.assertEquals(new HashSet<Tuple>(expected), new HashSet<Tuple>(buffered));
+		Assert.assertEquals(new HashSet<Tuple>(expected), new HashSet<Tuple>(sorted));
+	}
+
+	@Test
+	public void testParallelPieces() throws IOException{
+		// Page views of a heavy user, with long gaps between browsing sessions.
+		DataBag bag = prepareSessions(1.0, 100.0, false);
+		for ( String mode : new String[]{"ids", "ordinal"} ){
+			List<Tuple> expected = PigUtils.databagToList(new DetectActivity("2s", "0s", mode, "hash").exec(tupleFactory.newTuple(bag)));
+			DetectActivity func = new DetectActivity("2s", "0s", mode, "hash", "0s", "false", "4");
+			List<Tuple> result = PigUtils.databagToList(func.exec(tupleFactory.newTuple(bag)));
+			func.finish();
+			Assert.assertEquals(1200, result.size());
+			Assert.assertEquals(expected, result);
+		}
+		// Sessions less than the horizon apart: at a gap, the watermark closes the later pages of a session
+		// ahead of its first one, which is held open by its images.
+		bag = prepareSessions(3.0, 80.0, true);
+		for ( String mode : new String[]{"ids", "ordinal"} ){
+			List<Tuple> expected = PigUtils.databagToList(new DetectActivity("2s", "30s", mode, "hash").exec(tupleFactory.newTuple(bag)));
+			DetectActivity func = new DetectActivity("2s", "30s", mode, "hash", "0s", "false", "4");
+			List<Tuple> result = PigUtils.databagToList(func.exec(tupleFactory.newTuple(bag)));
+			func.finish();
+			Assert.assertEquals(1200, result.size());
+			Assert.assertEquals(expected, result);
+		}
 	}
 	
-	private Tuple prepareTuple(Double start, Double end, String url, String referrer, String type, String id){
-		Tuple tuple = tupleFactory.newTuple();
-		tuple.append(start);
-		tuple.append(end);
-		tuple.append(url);
-		tuple.append(referrer);
-		tuple.append(type);
-		tuple.append(id);
-		return tuple;
+	/**
+	 * Sessions of 20 entities, each session being a period apart. Normally, a page and its images follow every
+	 * 5 entities. If anchored, every other entity is an image of the first page of the session, and the others
+	 * are pages without images, so that the first page is held open while later pages close.
+	 */
+	private DataBag prepareSessions(double spacing, double period, boolean anchored){
+		DataBag bag = bagFactory.newDefaultBag();
+		for ( int session = 0; session < 60; session++ ){
+			double t = session * period;
+			for ( int i = 0; i < 20; i++ ){
+				String page = "http://www.bar.com/" + session + "-" + (anchored ? (i % 2 == 0 ? 0 : i) : i / 5) + ".html";
+				if ( anchored ? i == 0 || i % 2 == 1 : i % 5 == 0 )
+					bag.add(AEMFixtures.prepareTuple(t + i*spacing, t + i*spacing + 0.1, page, null, "text/html", session + "-" + i));
+				else
+					bag.add(AEMFixtures.prepareTuple(t + i*spacing - 0.5, t + i*spacing - 0.4, page + i + ".png", page, "image/png", session + "-" + i));
+			}
+		}
+		return bag;
 	}
 }
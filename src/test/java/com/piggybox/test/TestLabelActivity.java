@@ -0,0 +1,105 @@
+package com.piggybox.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.junit.Test;
+
+import com.piggybox.omnilab.aem.LabelActivity;
+import com.piggybox.utils.PigUtils;
+
+public class TestLabelActivity {
+	private TupleFactory tupleFactory = TupleFactory.getInstance();
+
+	@Test
+	public void testLabelActivity() throws IOException{
+		DataBag input = BagFactory.getInstance().newDefaultBag();
+		input.add(createRequest(1, "http://a.com/", "a1"));
+		input.add(createRequest(2, "http://a.com/x.png", "a1"));
+		input.add(createRequest(3, "http://b.com/", "a2"));
+		input.add(createRequest(4, "http://b.com/", "a3"));
+		input.add(createRequest(5, "http://a.com/", "a4"));
+		input.add(createRequest(6, null, "a5"));
+		String[] expected = new String[]{"start", "forward", "refresh", "backward"};
+		int i = 0;
+		for ( Tuple t : new LabelActivity().exec(tupleFactory.newTuple(input)) )
+			Assert.assertEquals(expected[i++], t.get(1));
+		Assert.assertEquals(4, i);
+	}
+
+	@Test
+	public void testLookback() throws IOException{
+		// Many activities revisiting a few hundred pages, compared with a plain scan of the past 200 activities.
+		Random random = new Random(7);
+		DataBag input = BagFactory.getInstance().newDefaultBag();
+		List<String> firstUrls = new ArrayList<String>();
+		for ( int a = 0; a < 5000; a++ ){
+			String url = "http://a.com/" + random.nextInt(a % 2 == 0 ? 20 : 400);
+			firstUrls.add(url);
+			for ( int r = 0; r <= random.nextInt(3); r++ )
+				input.add(createRequest(a, r == 0 ? url : url + r + ".png", "act" + a));
+		}
+		int i = 0;
+		for ( Tuple t : new LabelActivity().exec(tupleFactory.newTuple(input)) ){
+			Assert.assertEquals("act" + i, t.get(0));
+			Assert.assertEquals(scanLabel(firstUrls, i), t.get(1));
+			i++;
+		}
+		Assert.assertEquals(firstUrls.size(), i);
+	}
+
+	@Test
+	public void testAccumulate() throws IOException{
+		// act0 stays alive across 1000 activities, far past any window of recent activities.
+		DataBag input = BagFactory.getInstance().newDefaultBag();
+		List<String> firstUrls = new ArrayList<String>();
+		for ( int a = 0; a < 1000; a++ ){
+			String url = "http://a.com/" + (a * 7 % 90);
+			firstUrls.add(url);
+			input.add(createRequest(a, url, "act" + a));
+			input.add(createRequest(a + 0.5, "http://a.com/x.png", "act" + a));
+			if ( a % 50 == 0 )
+				input.add(createRequest(a + 0.6, "http://a.com/" + a + ".js", "act0"));
+		}
+		List<Tuple> expected = PigUtils.databagToList(new LabelActivity().exec(tupleFactory.newTuple(input)));
+		LabelActivity func = new LabelActivity();
+		List<Tuple> all = PigUtils.databagToList(input);
+		for ( int i = 0; i < all.size(); i += 333 ){
+			DataBag chunk = BagFactory.getInstance().newDefaultBag(all.subList(i, Math.min(i + 333, all.size())));
+			func.accumulate(tupleFactory.newTuple(chunk));
+		}
+		List<Tuple> result = PigUtils.databagToList(func.getValue());
+		func.cleanup();
+		Assert.assertEquals(firstUrls.size(), result.size());
+		for ( int i = 0; i < result.size(); i++ ){
+			Assert.assertEquals("act" + i, result.get(i).get(0));
+			Assert.assertEquals(scanLabel(firstUrls, i), result.get(i).get(1));
+		}
+		Assert.assertEquals(expected, result);
+	}
+
+	private String scanLabel(List<String> firstUrls, int i){
+		if ( i == 0 )
+			return "start";
+		for ( int j = i-1; j >= 0 && j >= i-200; j-- ){
+			if ( firstUrls.get(i).equals(firstUrls.get(j)) )
+				return i - j == 1 ? "refresh" : "backward";
+		}
+		return "forward";
+	}
+
+	private Tuple createRequest(double time, String url, String aid){
+		Tuple t = tupleFactory.newTuple(time);
+		t.append(url);
+		t.append(aid);
+		return t;
+	}
+}
@@ -0,0 +1,49 @@
+package com.piggybox.test;
+
+import java.io.IOException;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.TupleFactory;
+import org.junit.Test;
+
+import com.piggybox.omnilab.aem.DetectActivity;
+import com.piggybox.utils.LowMemoryWatcher;
+
+public class TestLowMemoryWatcher {
+	private TupleFactory tupleFactory = TupleFactory.getInstance();
+	private BagFactory bagFactory = BagFactory.getInstance();
+
+	@Test
+	public void testLowMemory() throws IOException{
+		// Two open activities when memory runs low: a page with an image, and a page of another site.
+		DataBag before = bagFactory.newDefaultBag();
+		before.add(AEMFixtures.prepareTuple(1.0, 1.1, "http://www.bar.com/1.html", null, "text/html", "100"));
+		before.add(AEMFixtures.prepareTuple(1.1, 1.2, "http://www.bar.com/a.png", "http://www.bar.com/1.html", "image/png", "101"));
+		before.add(AEMFixtures.prepareTuple(1.2, 1.3, "http://www.foo.com/2.html", null, "text/html", "102"));
+		DataBag after = bagFactory.newDefaultBag();
+		after.add(AEMFixtures.prepareTuple(1.3, 1.4, "http://www.bar.com/b.png", "http://www.bar.com/1.html", "image/png", "103"));
+		// Without memory pressure, the late image joins the first page.
+		Map<Object, Object> expected = AEMFixtures.activityById(detectIds(before, after, false));
+		Assert.assertEquals(expected.get("100"), expected.get("103"));
+		// Force-closing the oldest half cuts the first page off before its late image.
+		Map<Object, Object> result = AEMFixtures.activityById(detectIds(before, after, true));
+		Assert.assertEquals(result.get("100"), result.get("101"));
+		Assert.assertFalse(result.get("100").equals(result.get("103")));
+		Assert.assertFalse(result.get("100").equals(result.get("102")));
+	}
+
+	private DataBag detectIds(DataBag before, DataBag after, boolean lowMemory) throws IOException{
+		DetectActivity func = new DetectActivity("2s", "0s", "ids", "hash", "0s", "true");
+		func.accumulate(tupleFactory.newTuple(before));
+		if ( lowMemory )
+			LowMemoryWatcher.getInstance().notifyLowMemory();
+		func.accumulate(tupleFactory.newTuple(after));
+		DataBag result = func.getValue();
+		func.cleanup();
+		return result;
+	}
+}
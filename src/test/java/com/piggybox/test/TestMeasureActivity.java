@@ -0,0 +1,161 @@
+package com.piggybox.test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.junit.Test;
+
+import com.piggybox.omnilab.aem.MeasureActivity;
+import com.piggybox.utils.PigUtils;
+
+public class TestMeasureActivity {
+	private TupleFactory tupleFactory = TupleFactory.getInstance();
+	private BagFactory bagFactory = BagFactory.getInstance();
+
+	@Test
+	public void testMeasureActivity() throws IOException{
+		Tuple result = new MeasureActivity(1.0).exec(tupleFactory.newTuple(prepareInput())).iterator().next();
+		Assert.assertEquals(14, result.size());
+		Assert.assertEquals(1.0, result.get(0)); // start
+		Assert.assertEquals(4L, result.get(1)); // entities
+		Assert.assertEquals(4400L, result.get(2)); // size
+		Assert.assertEquals(4.5, result.get(3)); // duration
+		Assert.assertEquals("forward", result.get(6));
+		Assert.assertEquals(0.25, result.get(7)); // mean source latency
+		Assert.assertEquals("www.bar.com", result.get(12));
+		Assert.assertEquals("http://www.bar.com/1.html", result.get(13));
+	}
+
+	@Test
+	public void testSummaries() throws IOException{
+		Tuple result = new MeasureActivity("1.0", "true", "50,100").exec(tupleFactory.newTuple(prepareInput())).iterator().next();
+		Assert.assertEquals(14 + 5*3 + 5*2, result.size());
+		Assert.assertEquals(0.0125, (Double) result.get(14), 1e-12); // variance of source latencies
+		Assert.assertEquals(0.1, result.get(15)); // min
+		Assert.assertEquals(0.4, result.get(16)); // max
+		Assert.assertEquals(0.2, result.get(29)); // median
+		Assert.assertEquals(0.4, result.get(30)); // 100th percentile
+	}
+
+	@Test
+	public void testAccumulate() throws IOException{
+		// The first round(0.7 * 4) = 3 entities are measured, whichever the chunks.
+		List<Tuple> expected = PigUtils.databagToList(new MeasureActivity(0.7).exec(tupleFactory.newTuple(prepareInput())));
+		Assert.assertEquals(3L, expected.get(0).get(1));
+		MeasureActivity func = new MeasureActivity(0.7);
+		for ( Tuple t : prepareInput() )
+			func.accumulate(tupleFactory.newTuple(bagFactory.newDefaultBag(Arrays.asList(t))));
+		Assert.assertEquals(expected, PigUtils.databagToList(func.getValue()));
+		func.cleanup();
+	}
+
+	@Test
+	public void testNullTimes() throws IOException{
+		// A trailing entity beyond the portion is never read by order, but is needed to select by quantile.
+		DataBag input = prepareInput();
+		Tuple broken = prepareRecord(6.0, 0.5, "/d.png", "http://www.bar.com/1.html", "image/png");
+		broken.set(33, null);
+		input.add(broken);
+		Assert.assertEquals(PigUtils.databagToList(new MeasureActivity(1.0).exec(tupleFactory.newTuple(prepareInput()))),
+				PigUtils.databagToList(new MeasureActivity(0.8).exec(tupleFactory.newTuple(input))));
+		try {
+			new MeasureActivity("0.8", "false", "", "wide", "quantile").exec(tupleFactory.newTuple(input));
+			Assert.fail("Expected null times to fail by quantile");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testNarrowInput() throws IOException{
+		// The 16 used fields of the wide record, projected in another order.
+		String[] names = new String[]{"label", "interrupted", "rsp_content_type", "req_ref", "req_host", "req_url",
+				"rsp_payload", "req_payload", "rsp_dur", "rsp_time", "req_time", "dst_rtt_std", "src_rtt_std",
+				"dst_rtt_avg", "src_rtt_avg", "ap"};
+		int[] widePositions = new int[]{51, 50, 46, 43, 41, 39, 37, 36, 34, 33, 30, 16, 15, 14, 13, 1};
+		Schema recordSchema = new Schema();
+		for ( String name : names )
+			recordSchema.add(new Schema.FieldSchema(name, DataType.BYTEARRAY));
+		Schema inputSchema = new Schema(new Schema.FieldSchema("records",
+				new Schema(new Schema.FieldSchema(null, recordSchema, DataType.TUPLE)), DataType.BAG));
+		DataBag narrow = bagFactory.newDefaultBag();
+		for ( Tuple t : prepareInput() ){
+			Tuple projected = tupleFactory.newTuple();
+			for ( int position : widePositions )
+				projected.append(t.get(position));
+			narrow.add(projected);
+		}
+		MeasureActivity func = new MeasureActivity("0.95", "true", "50", "narrow");
+		func.setUDFContextSignature("testNarrowInput");
+		Assert.assertEquals(29 + 5, func.outputSchema(inputSchema).getField(0).schema.size());
+		for ( Schema untyped : new Schema[]{null, new Schema(new Schema.FieldSchema("records", DataType.BYTEARRAY))} ){
+			try {
+				func.outputSchema(untyped);
+				Assert.fail("Expected an untyped input to fail");
+			} catch (RuntimeException e) {
+				Assert.assertTrue(e.getCause() instanceof FrontendException);
+			}
+		}
+		Assert.assertNull(new MeasureActivity("0.95", "true", "50").outputSchema(inputSchema));
+		List<Tuple> expected = PigUtils.databagToList(new MeasureActivity("0.95", "true", "50").exec(tupleFactory.newTuple(prepareInput())));
+		Assert.assertEquals(expected, PigUtils.databagToList(func.exec(tupleFactory.newTuple(narrow))));
+	}
+
+	@Test
+	public void testTrimByQuantile() throws IOException{
+		// A slow entity first in bag order is dropped by quantile, but measured by order.
+		DataBag input = bagFactory.newDefaultBag();
+		Tuple slow = prepareRecord(0.5, 0.9, "http://www.foo.com/", null, "text/html");
+		slow.set(34, 20.0);
+		input.add(slow);
+		for ( Tuple t : prepareInput() )
+			input.add(t);
+		Tuple byOrder = new MeasureActivity("0.8", "false", "").exec(tupleFactory.newTuple(input)).iterator().next();
+		Assert.assertEquals(0.5, byOrder.get(0));
+		Assert.assertEquals(4L, byOrder.get(1));
+		MeasureActivity func = new MeasureActivity("0.8", "true", "50", "wide", "quantile");
+		for ( Tuple t : input )
+			func.accumulate(tupleFactory.newTuple(bagFactory.newDefaultBag(Arrays.asList(t))));
+		Tuple byQuantile = func.getValue().iterator().next();
+		func.cleanup();
+		List<Tuple> expected = PigUtils.databagToList(new MeasureActivity("1.0", "true", "50").exec(tupleFactory.newTuple(prepareInput())));
+		Assert.assertEquals(expected.get(0), byQuantile);
+	}
+
+	private DataBag prepareInput() throws IOException{
+		DataBag dataBag = bagFactory.newDefaultBag();
+		dataBag.add(prepareRecord(1.0, 0.1, "http://www.bar.com/1.html", null, "text/html"));
+		dataBag.add(prepareRecord(1.5, 0.2, "/a.png", "http://www.bar.com/1.html", "image/png"));
+		dataBag.add(prepareRecord(2.0, 0.3, "/b.png", "http://www.bar.com/1.html", "image/png"));
+		dataBag.add(prepareRecord(5.0, 0.4, "/c.png", "http://www.bar.com/1.html", "image/png"));
+		return dataBag;
+	}
+
+	private Tuple prepareRecord(double reqTime, double srcRtt, String url, String referrer, String type) throws IOException{
+		Tuple tuple = tupleFactory.newTuple(52);
+		tuple.set(1, "ap1");
+		tuple.set(13, srcRtt);
+		tuple.set(30, reqTime);
+		tuple.set(33, reqTime + 0.2);
+		tuple.set(34, 0.3);
+		tuple.set(36, 100L);
+		tuple.set(37, 1000L);
+		tuple.set(39, url);
+		tuple.set(41, "www.bar.com");
+		tuple.set(43, referrer);
+		tuple.set(46, type);
+		tuple.set(50, false);
+		tuple.set(51, "forward");
+		return tuple;
+	}
+}
@@ -0,0 +1,40 @@
+package com.piggybox.test;
+
+import java.io.IOException;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.junit.Test;
+
+import com.piggybox.omnilab.aem.ParallelDetectActivity;
+import com.piggybox.utils.PigUtils;
+
+public class TestParallelDetectActivity {
+	private TupleFactory tupleFactory = TupleFactory.getInstance();
+	private BagFactory bagFactory = BagFactory.getInstance();
+
+	@Test
+	public void testParallelDetectActivity() throws IOException{
+		DataBag bag = bagFactory.newDefaultBag();
+		for ( String user : new String[]{"u1", "u2", "u3"} ){
+			for ( Tuple t : AEMFixtures.prepareBag() ){
+				t.append(user);
+				bag.add(t);
+			}
+		}
+		ParallelDetectActivity func = new ParallelDetectActivity("6", "2s", "2");
+		List<Tuple> result = PigUtils.databagToList(func.exec(tupleFactory.newTuple(bag)));
+		func.finish();
+		Assert.assertEquals(18, result.size());
+		// Users never share activities.
+		for ( Tuple t : result )
+			for ( Tuple o : result )
+				if ( t.get(7).equals(o.get(7)) )
+					Assert.assertEquals(t.get(6), o.get(6));
+	}
+}
@@ -0,0 +1,76 @@
+package com.piggybox.test;
+
+import java.io.IOException;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.junit.Test;
+
+import com.piggybox.omnilab.aem.DetectActivity;
+import com.piggybox.omnilab.aem.MeasureActivity;
+import com.piggybox.omnilab.aem.ProfileActivity;
+import com.piggybox.utils.PigUtils;
+
+public class TestProfileActivity {
+	private TupleFactory tupleFactory = TupleFactory.getInstance();
+	private BagFactory bagFactory = BagFactory.getInstance();
+
+	@Test
+	public void testProfileActivity() throws IOException{
+		DataBag bag = AEMFixtures.prepareBag();
+		bag.add(AEMFixtures.prepareTuple(40.0, 40.1, "http://www.bar.com/1.html", null, "text/html", "300"));
+		DataBag input = bagFactory.newDefaultBag();
+		for ( Tuple t : bag ){
+			Tuple newT = tupleFactory.newTuple(t.getAll());
+			for ( Object field : prepareRecord(t).getAll() )
+				newT.append(field);
+			input.add(newT);
+		}
+		List<Tuple> result = PigUtils.databagToList(new ProfileActivity("2s", "0s", "hash", "1.0").exec(tupleFactory.newTuple(input)));
+		Assert.assertEquals(4, result.size());
+		String[] labels = new String[]{"start", "forward", "forward", "backward"};
+		List<Tuple> detected = PigUtils.databagToList(new DetectActivity("2s", "0s", "full", "hash").exec(tupleFactory.newTuple(bag)));
+		for ( int i = 0; i < result.size(); i++ ){
+			Tuple profile = result.get(i);
+			Assert.assertEquals(labels[i], profile.get(1));
+			// The same measures as MeasureActivity over the labeled records of the activity.
+			DataBag records = bagFactory.newDefaultBag();
+			for ( Tuple t : detected ){
+				if ( t.get(6).equals(profile.get(0)) ){
+					Tuple record = prepareRecord(t);
+					record.append(labels[i]);
+					records.add(record);
+				}
+			}
+			Tuple expected = new MeasureActivity(1.0).exec(tupleFactory.newTuple(records)).iterator().next();
+			Assert.assertEquals(expected.getAll(), profile.getAll().subList(2, profile.size()));
+		}
+	}
+
+	/**
+	 * Make the HTTP record read by MeasureActivity for a request, without the label field.
+	 */
+	private Tuple prepareRecord(Tuple request) throws IOException{
+		Tuple record = tupleFactory.newTuple(51);
+		double start = (Double) request.get(0);
+		record.set(1, "ap1");
+		record.set(13, 0.02);
+		record.set(14, 0.03);
+		record.set(30, start);
+		record.set(33, start + 0.05);
+		record.set(34, 0.05);
+		record.set(36, 100L);
+		record.set(37, 1000L);
+		record.set(39, request.get(2));
+		record.set(41, "www.bar.com");
+		record.set(43, request.get(3));
+		record.set(46, request.get(4));
+		record.set(50, false);
+		return record;
+	}
+}
@@ -0,0 +1,84 @@
+package com.piggybox.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.junit.Test;
+
+import com.piggybox.omnilab.aem.DetectActivity;
+import com.piggybox.omnilab.aem.StreamDetectActivity;
+import com.piggybox.utils.PigUtils;
+
+public class TestStreamDetectActivity {
+	private TupleFactory tupleFactory = TupleFactory.getInstance();
+
+	@Test
+	public void testStreamDetectActivity() throws IOException{
+		Set<Tuple> expected = new HashSet<Tuple>();
+		for ( String user : new String[]{"u1", "u2"} )
+			expected.addAll(PigUtils.databagToList(new DetectActivity("2s", "0s", "ids", "hash")
+					.exec(tupleFactory.newTuple(Arrays.<Object>asList(AEMFixtures.prepareBag(), user)))));
+		// Every row is answered at once, whether a user is kept to the end, dropped as soon as the next comes,
+		// or read by a task of its own.
+		for ( String maxUsers : new String[]{"1000", "1"} ){
+			StreamDetectActivity func = new StreamDetectActivity("2s", "0s", "hash", maxUsers, "100000");
+			Set<Tuple> result = new HashSet<Tuple>();
+			for ( String user : new String[]{"u1", "u2"} )
+				result.addAll(streamUser(func, user));
+			Assert.assertEquals(12, result.size());
+			Assert.assertEquals(expected, result);
+		}
+		Set<Tuple> split = new HashSet<Tuple>();
+		for ( String user : new String[]{"u1", "u2"} )
+			split.addAll(streamUser(new StreamDetectActivity("2s", "0s", "hash"), user));
+		Assert.assertEquals(expected, split);
+		// A row without start time can not be placed, but is not lost.
+		Tuple unplaced = tupleFactory.newTuple(7);
+		unplaced.set(5, "300");
+		Tuple result = new StreamDetectActivity("2s", "0s", "hash").exec(unplaced);
+		Assert.assertEquals("300", result.get(0));
+		Assert.assertNull(result.get(1));
+	}
+
+	@Test
+	public void testCutAfterAttached() throws IOException{
+		DataBag bag = AEMFixtures.prepareFatArticle();
+		Map<Object, Object> expected = AEMFixtures.activityById(new DetectActivity("2s", "0s", "ids", "hash")
+				.exec(tupleFactory.newTuple(Arrays.<Object>asList(bag, "u1"))));
+		Assert.assertFalse(expected.get("home").equals(expected.get("article")));
+		StreamDetectActivity func = new StreamDetectActivity("2s", "0s", "hash");
+		Map<Object, Object> result = new HashMap<Object, Object>();
+		for ( Tuple t : bag ){
+			Tuple row = tupleFactory.newTuple(t.getAll());
+			row.append("u1");
+			Tuple output = func.exec(row);
+			result.put(output.get(0), output.get(1));
+		}
+		// The rows attached before the cut keep the activity of the home page.
+		Assert.assertEquals(result.get("home"), result.get("article"));
+		Assert.assertEquals(result.get("home"), result.get("img5"));
+		Assert.assertEquals(expected.get("home"), result.get("home"));
+		Assert.assertEquals(expected.get("article"), result.get("img6"));
+	}
+
+	private List<Tuple> streamUser(StreamDetectActivity func, String user) throws IOException{
+		List<Tuple> result = new ArrayList<Tuple>();
+		for ( Tuple t : AEMFixtures.prepareBag() ){
+			Tuple row = tupleFactory.newTuple(t.getAll());
+			row.append(user);
+			result.add(func.exec(row));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,92 @@
+package com.piggybox.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.junit.Test;
+
+import com.piggybox.omnilab.aem.DetectActivity;
+import com.piggybox.omnilab.aem.SweepActivity;
+import com.piggybox.utils.PigUtils;
+
+public class TestSweepActivity {
+	private TupleFactory tupleFactory = TupleFactory.getInstance();
+	private BagFactory bagFactory = BagFactory.getInstance();
+
+	@Test
+	public void testSweepActivity() throws IOException{
+		String[] readingTimes = new String[]{"2s", "5s"};
+		List<Tuple> result = PigUtils.databagToList(new SweepActivity("2s;5s;2s,0.5,8,5,2", "hash").exec(tupleFactory.newTuple(AEMFixtures.prepareBag())));
+		Assert.assertEquals(18, result.size());
+		for ( int config = 0; config < 3; config++ ){
+			List<Tuple> expected = PigUtils.databagToList(new DetectActivity(readingTimes[config % 2], "0s", "ids", "hash")
+					.exec(tupleFactory.newTuple(AEMFixtures.prepareBag())));
+			List<Tuple> configResult = new ArrayList<Tuple>();
+			for ( Tuple t : result ){
+				if ( t.get(0).equals(config) )
+					configResult.add(tupleFactory.newTuple(Arrays.asList(t.get(1), t.get(2))));
+			}
+			Assert.assertEquals(expected, configResult);
+		}
+		// Each threshold against groupings worked out by hand. CONJ_ST_DIFF is left out, as conjunction
+		// entities overlap and are parallel otherwise, which links them the same way.
+		String[] configs = new String[]{"2s", "2s,0.5,8,2", "2s,0.5,8,5,3", "15s", "15s,0.5,20"};
+		String[] groupings = new String[]{
+				"a-home a-article a-1 a-2 a-3|b-home|b-article b-1 b-2 b-3|c-1|c-2",
+				"a-home|a-article a-1 a-2 a-3|b-home|b-article b-1 b-2 b-3|c-1|c-2", // a fat page cut off its referrer
+				"a-home a-article a-1 a-2 a-3|b-home b-article b-1 b-2 b-3|c-1|c-2", // a slim page kept
+				"a-home a-article a-1 a-2 a-3|b-home|b-article b-1 b-2 b-3|c-1|c-2",
+				"a-home a-article a-1 a-2 a-3|b-home|b-article b-1 b-2 b-3|c-1 c-2"}; // a longer serial gap
+		StringBuilder spec = new StringBuilder();
+		for ( String config : configs )
+			spec.append(spec.length() > 0 ? ";" : "").append(config);
+		result = PigUtils.databagToList(new SweepActivity(spec.toString(), "hash").exec(tupleFactory.newTuple(prepareArticles())));
+		for ( int config = 0; config < configs.length; config++ ){
+			Map<Object, Set<Object>> groups = new HashMap<Object, Set<Object>>();
+			for ( Tuple t : result ){
+				if ( ! t.get(0).equals(config) )
+					continue;
+				if ( ! groups.containsKey(t.get(2)) )
+					groups.put(t.get(2), new HashSet<Object>());
+				groups.get(t.get(2)).add(t.get(1));
+			}
+			Set<Set<Object>> expected = new HashSet<Set<Object>>();
+			for ( String group : groupings[config].split("\\|") )
+				expected.add(new HashSet<Object>(Arrays.asList((Object[]) group.split(" "))));
+			Assert.assertEquals(configs[config], expected, new HashSet<Set<Object>>(groups.values()));
+		}
+	}
+
+	/**
+	 * Three browsing sessions far apart: a page of site a with parallel images, a page of site b
+	 * with serial images, both referred from a home page, and two pages of site c 13.9 seconds apart.
+	 */
+	private DataBag prepareArticles(){
+		DataBag bag = bagFactory.newDefaultBag();
+		bag.add(AEMFixtures.prepareTuple(1.0, 1.1, "http://www.a.com/", null, "text/html", "a-home"));
+		bag.add(AEMFixtures.prepareTuple(1.2, 1.3, "http://www.a.com/article.html", "http://www.a.com/", "text/html", "a-article"));
+		for ( int i = 1; i <= 3; i++ )
+			bag.add(AEMFixtures.prepareTuple(1.3 + 0.05*i, 1.55 + 0.05*i, "http://www.a.com/" + i + ".png",
+					"http://www.a.com/article.html", "image/png", "a-" + i));
+		bag.add(AEMFixtures.prepareTuple(30.0, 30.1, "http://www.b.com/", null, "text/html", "b-home"));
+		bag.add(AEMFixtures.prepareTuple(30.2, 30.3, "http://www.b.com/article.html", "http://www.b.com/", "text/html", "b-article"));
+		for ( int i = 1; i <= 3; i++ )
+			bag.add(AEMFixtures.prepareTuple(30.2 + 0.2*i, 30.3 + 0.2*i, "http://www.b.com/" + i + ".png",
+					"http://www.b.com/article.html", "image/png", "b-" + i));
+		bag.add(AEMFixtures.prepareTuple(60.0, 60.1, "http://www.c.com/1.html", null, "text/html", "c-1"));
+		bag.add(AEMFixtures.prepareTuple(74.0, 74.1, "http://www.c.com/2.html", null, "text/html", "c-2"));
+		return bag;
+	}
+}